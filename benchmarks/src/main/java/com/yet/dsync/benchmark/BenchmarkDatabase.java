@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2017 Yuriy Tkach
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+
+package com.yet.dsync.benchmark;
+
+import com.yet.dsync.dao.CachedMetadataDao;
+import com.yet.dsync.dao.ConfigDao;
+import com.yet.dsync.dao.DatabaseInit;
+import com.yet.dsync.dao.DatabaseWriter;
+import com.yet.dsync.dao.MetadataDao;
+import com.yet.dsync.dao.ReadConnectionPool;
+import com.yet.dsync.dto.DropboxChangeType;
+import com.yet.dsync.dto.DropboxFileData;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDateTime;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Temporary client database filled with generated metadata rows. Only every
+ * hundredth row is left not loaded, which is close to what the client sees
+ * after the initial sync.
+ */
+final class BenchmarkDatabase {
+
+    static final int ROWS_PER_FOLDER = 100;
+
+    private static final String DB_NAME = "bench.db";
+
+    private static final int READ_CONNECTIONS = 4;
+
+    private final File dbFolder;
+    private final Connection connection;
+    private final DatabaseWriter databaseWriter;
+    private final ReadConnectionPool readConnectionPool;
+
+    BenchmarkDatabase(final int rows, final boolean indexed) throws IOException, SQLException {
+        dbFolder = Files.createTempDirectory("dsync-bench").toFile();
+
+        final DatabaseInit dbInit = new DatabaseInit();
+        connection = dbInit.createConnection(dbFolder.getAbsolutePath(), DB_NAME);
+        dbInit.createTables(connection);
+        dbInit.migrate(connection);
+
+        if (!indexed) {
+            try (Statement stmt = connection.createStatement()) {
+                stmt.executeUpdate("DROP INDEX IF EXISTS METADATA_PLOWER_IDX");
+                stmt.executeUpdate("DROP INDEX IF EXISTS METADATA_NOT_LOADED_IDX");
+            }
+        }
+
+        databaseWriter = new DatabaseWriter(connection);
+        readConnectionPool = new ReadConnectionPool(READ_CONNECTIONS,
+            () -> dbInit.createReadOnlyConnection(dbFolder.getAbsolutePath(), DB_NAME));
+
+        createMetadataDao().write(generateRows(0, rows, "rev"));
+
+        databaseWriter.execute(statements -> {
+            try (Statement stmt = statements.getConnection().createStatement()) {
+                return stmt.executeUpdate("UPDATE METADATA SET LOADED = 1"
+                        + " WHERE ROWID % " + ROWS_PER_FOLDER + " <> 0");
+            }
+        });
+    }
+
+    MetadataDao createMetadataDao() {
+        return new MetadataDao(databaseWriter, readConnectionPool);
+    }
+
+    ConfigDao createConfigDao() {
+        return new ConfigDao(databaseWriter, readConnectionPool);
+    }
+
+    MetadataDao createCachedMetadataDao(final long cacheSize) {
+        return new CachedMetadataDao(databaseWriter, readConnectionPool, cacheSize);
+    }
+
+    void close() throws IOException, SQLException {
+        databaseWriter.shutdown();
+        connection.close();
+        FileUtils.deleteDirectory(dbFolder);
+    }
+
+    static Set<DropboxFileData> generateRows(final int from, final int count, final String revPrefix) {
+        final LocalDateTime modified = LocalDateTime.now();
+        final Set<DropboxFileData> fileDataSet = new LinkedHashSet<>(count);
+        for (int i = from; i < from + count; i++) {
+            fileDataSet.add(new DropboxFileData.Builder()
+                    .changeType(DropboxChangeType.FILE)
+                    .id("id:" + i)
+                    .pathDisplay(lowerPath(i))
+                    .pathLower(lowerPath(i))
+                    .rev(revPrefix + i)
+                    .size((long) i)
+                    .serverModified(modified)
+                    .clientModified(modified)
+                    .build());
+        }
+        return fileDataSet;
+    }
+
+    static String lowerPath(final int row) {
+        return "/folder" + row / ROWS_PER_FOLDER + "/file" + row + ".txt";
+    }
+
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2017 Yuriy Tkach
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+
+package com.yet.dsync.benchmark;
+
+import com.dropbox.core.v2.files.DeletedMetadata;
+import com.dropbox.core.v2.files.FileMetadata;
+import com.dropbox.core.v2.files.FolderMetadata;
+import com.dropbox.core.v2.files.Metadata;
+import com.yet.dsync.dto.DropboxFileData;
+import com.yet.dsync.util.DropboxUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures conversion of Dropbox listing entries, which is done for every
+ * entry of the initial sync and of the polling.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConvertMetadataBenchmark {
+
+    private final Metadata fileMetadata = FileMetadata
+        .newBuilder("DSyncClient.java", "id:a4ayc_80_OEAAAAAAAAAXw", new Date(), new Date(), "a1c10ce0dd78", 1024)
+        .withPathLower("/projects/dsync-client/dsyncclient.java")
+        .withPathDisplay("/Projects/dsync-client/DSyncClient.java")
+        .build();
+
+    private final Metadata folderMetadata = FolderMetadata
+        .newBuilder("dsync-client", "id:a4ayc_80_OEAAAAAAAAAXz")
+        .withPathLower("/projects/dsync-client")
+        .withPathDisplay("/Projects/dsync-client")
+        .build();
+
+    private final Metadata deletedMetadata = DeletedMetadata
+        .newBuilder("Old.java")
+        .withPathLower("/projects/dsync-client/old.java")
+        .withPathDisplay("/Projects/dsync-client/Old.java")
+        .build();
+
+    @Benchmark
+    public DropboxFileData convertFile() {
+        return DropboxUtil.convertMetadata(fileMetadata);
+    }
+
+    @Benchmark
+    public DropboxFileData convertFolder() {
+        return DropboxUtil.convertMetadata(folderMetadata);
+    }
+
+    @Benchmark
+    public DropboxFileData convertDeleted() {
+        return DropboxUtil.convertMetadata(deletedMetadata);
+    }
+
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2017 Yuriy Tkach
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.yet.dsync.benchmark;
+
+import com.dropbox.core.v2.files.FileMetadata;
+import com.dropbox.core.v2.files.FolderMetadata;
+import com.dropbox.core.v2.files.ListFolderResult;
+import com.dropbox.core.v2.files.Metadata;
+import com.yet.dsync.service.DropboxListing;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Dropbox account kept in memory, listed in pages the same way as by the
+ * Dropbox API. Each top-level folder holds files and a subfolder with
+ * files, and a few files are in the root. Recursive listing of a folder
+ * includes the folder itself. The last page of the recursive root listing
+ * returns the latest cursor, like Dropbox does.
+ */
+final class FakeDropboxListing implements DropboxListing {
+
+    static final String LATEST_CURSOR = "latest";
+
+    private static final int PAGE_SIZE = 500;
+
+    private static final int ROOT_FILES = 10;
+
+    private final NavigableMap<String, Metadata> entries = new TreeMap<>();
+
+    private final ConcurrentMap<String, List<Metadata>> listings = new ConcurrentHashMap<>();
+
+    private final AtomicLong listingIds = new AtomicLong();
+
+    FakeDropboxListing(final int topFolders, final int filesPerFolder) {
+        final Date modified = new Date();
+        for (int i = 0; i < ROOT_FILES; i++) {
+            addFile("/Root" + i + ".txt", modified);
+        }
+        for (int folder = 0; folder < topFolders; folder++) {
+            final String folderPath = "/Folder" + folder;
+            addFolder(folderPath);
+            addFolder(folderPath + "/Sub");
+            for (int file = 0; file < filesPerFolder; file++) {
+                addFile(folderPath + (file % 2 == 0 ? "" : "/Sub") + "/File" + file + ".txt", modified);
+            }
+        }
+    }
+
+    /**
+     * All entries of the account by lower path
+     */
+    NavigableMap<String, Metadata> getEntries() {
+        return Collections.unmodifiableNavigableMap(entries);
+    }
+
+    @Override
+    public ListFolderResult listFolder(final String path, final boolean recursive) {
+        final String pathLower = path.toLowerCase(Locale.ENGLISH);
+        final Collection<Metadata> tree = pathLower.isEmpty() ? entries.values()
+                : entries.subMap(pathLower + "/", pathLower + "0").values();
+
+        final List<Metadata> listed = new ArrayList<>();
+        if (recursive && !pathLower.isEmpty()) {
+            listed.add(entries.get(pathLower));
+        }
+        for (final Metadata metadata : tree) {
+            if (recursive || metadata.getPathLower().lastIndexOf('/') == pathLower.length()) {
+                listed.add(metadata);
+            }
+        }
+
+        final String listingId = String.valueOf(listingIds.incrementAndGet());
+        listings.put(listingId, listed);
+        return page(listingId, 0, recursive && pathLower.isEmpty());
+    }
+
+    @Override
+    public ListFolderResult listFolderContinue(final String cursor) {
+        final String[] parts = cursor.split(":");
+        return page(parts[0], Integer.parseInt(parts[1]), Boolean.parseBoolean(parts[2]));
+    }
+
+    @Override
+    public String retrieveLatestCursor() {
+        return LATEST_CURSOR;
+    }
+
+    private ListFolderResult page(final String listingId, final int offset, final boolean wholeAccount) {
+        final List<Metadata> listed = listings.get(listingId);
+        final int end = Math.min(offset + PAGE_SIZE, listed.size());
+        final boolean hasMore = end < listed.size();
+
+        final String cursor;
+        if (hasMore) {
+            cursor = listingId + ":" + end + ":" + wholeAccount;
+        } else {
+            listings.remove(listingId);
+            cursor = wholeAccount ? LATEST_CURSOR : listingId + ":" + end + ":false";
+        }
+        return new ListFolderResult(new ArrayList<>(listed.subList(offset, end)), cursor, hasMore);
+    }
+
+    private void addFolder(final String pathDisplay) {
+        final String pathLower = pathDisplay.toLowerCase(Locale.ENGLISH);
+        entries.put(pathLower, FolderMetadata
+            .newBuilder(name(pathDisplay), "id:" + pathLower)
+            .withPathLower(pathLower)
+            .withPathDisplay(pathDisplay)
+            .build());
+    }
+
+    private void addFile(final String pathDisplay, final Date modified) {
+        final String pathLower = pathDisplay.toLowerCase(Locale.ENGLISH);
+        final String rev = String.format("%09x", entries.size() + 1);
+        entries.put(pathLower, FileMetadata
+            .newBuilder(name(pathDisplay), "id:" + pathLower, modified, modified, rev, pathLower.length())
+            .withPathLower(pathLower)
+            .withPathDisplay(pathDisplay)
+            .build());
+    }
+
+    private static String name(final String pathDisplay) {
+        return pathDisplay.substring(pathDisplay.lastIndexOf('/') + 1);
+    }
+
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2017 Yuriy Tkach
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.yet.dsync.benchmark;
+
+import com.dropbox.core.v2.files.Metadata;
+import com.yet.dsync.dao.ConfigDao;
+import com.yet.dsync.dao.MetadataDao;
+import com.yet.dsync.dto.DropboxFileData;
+import com.yet.dsync.service.DropboxChange;
+import com.yet.dsync.service.DropboxInitialSync;
+import com.yet.dsync.service.InitialSyncMode;
+import com.yet.dsync.service.PartitionedInitialSync;
+import com.yet.dsync.util.Config;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the initial sync of each mode against the in-memory Dropbox account
+ * into an empty database. After each run the result is checked: every entry
+ * of the account must be in METADATA exactly once, and the saved cursor
+ * must be the latest cursor of the account.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class InitialSyncBenchmark {
+
+    private static final int FILES_PER_FOLDER = 1000;
+
+    private static final int LISTING_THREADS = 4;
+
+    @Param({"SERIAL", "PIPELINED", "PARTITIONED"})
+    private InitialSyncMode syncMode;
+
+    @Param({"16", "64"})
+    private int topFolders;
+
+    private FakeDropboxListing listing;
+
+    private BenchmarkDatabase database;
+    private MetadataDao metadataDao;
+    private ConfigDao configDao;
+
+    @Setup(Level.Trial)
+    public void setUpListing() {
+        listing = new FakeDropboxListing(topFolders, FILES_PER_FOLDER);
+    }
+
+    @Setup(Level.Invocation)
+    public void setUpDatabase() throws IOException, SQLException {
+        database = new BenchmarkDatabase(0, true);
+        metadataDao = database.createMetadataDao();
+        configDao = database.createConfigDao();
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDownDatabase() throws IOException, SQLException {
+        try {
+            verifySyncResult();
+        } finally {
+            database.close();
+        }
+    }
+
+    @Benchmark
+    public void initialSync() {
+        final DropboxChange syncListener = metadataDao::write;
+        final Runnable sync = syncMode == InitialSyncMode.PARTITIONED
+                ? new PartitionedInitialSync(listing, configDao, syncListener, LISTING_THREADS)
+                : new DropboxInitialSync(listing, configDao, syncListener, syncMode);
+        sync.run();
+    }
+
+    private void verifySyncResult() {
+        final String cursor = configDao.read(Config.CURSOR);
+        if (!FakeDropboxListing.LATEST_CURSOR.equals(cursor)) {
+            throw new IllegalStateException("Saved cursor is " + cursor + " instead of the latest one");
+        }
+
+        // Initial sync leaves every entry not loaded
+        final int rows = metadataDao.readAllNotLoaded().size();
+        if (rows != listing.getEntries().size()) {
+            throw new IllegalStateException("METADATA has " + rows + " rows for "
+                    + listing.getEntries().size() + " entries");
+        }
+
+        for (final Map.Entry<String, Metadata> entry : listing.getEntries().entrySet()) {
+            final DropboxFileData fileData = metadataDao.readByLowerPath(entry.getKey());
+            if (fileData == null || !fileData.getPathDisplay().equals(entry.getValue().getPathDisplay())) {
+                throw new IllegalStateException("METADATA has " + fileData + " for " + entry.getKey());
+            }
+        }
+    }
+
+}
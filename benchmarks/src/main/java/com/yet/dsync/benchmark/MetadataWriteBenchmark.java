@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2017 Yuriy Tkach
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+
+package com.yet.dsync.benchmark;
+
+import com.yet.dsync.dao.MetadataDao;
+import com.yet.dsync.dto.DropboxFileData;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures metadata writes and lookups on tables of different size, through
+ * the plain dao and through the cached one. The polled page is the typical
+ * set of changes that comes from Dropbox polling: existing entries with new
+ * revisions.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetadataWriteBenchmark {
+
+    private static final int PAGE_SIZE = 500;
+
+    private static final int CACHE_SIZE = 100_000;
+
+    @Param({"10000", "100000", "1000000"})
+    private int rows;
+
+    @Param({"plain", "cached"})
+    private String dao;
+
+    private BenchmarkDatabase database;
+    private MetadataDao metadataDao;
+
+    private long revision;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, SQLException {
+        database = new BenchmarkDatabase(rows, true);
+        metadataDao = "cached".equals(dao) ? database.createCachedMetadataDao(CACHE_SIZE)
+            : database.createMetadataDao();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException, SQLException {
+        database.close();
+    }
+
+    @Benchmark
+    public void writeSingle() {
+        final int row = ThreadLocalRandom.current().nextInt(rows);
+        metadataDao.write(BenchmarkDatabase.generateRows(row, 1, nextRevision()).iterator().next());
+    }
+
+    @Benchmark
+    public void upsertPolledPage() {
+        final int from = ThreadLocalRandom.current().nextInt(rows - PAGE_SIZE);
+        final Set<DropboxFileData> page = BenchmarkDatabase.generateRows(from, PAGE_SIZE, nextRevision());
+        metadataDao.upsert(page);
+    }
+
+    @Benchmark
+    public DropboxFileData readByLowerPath() {
+        final int row = ThreadLocalRandom.current().nextInt(rows);
+        return metadataDao.readByLowerPath(BenchmarkDatabase.lowerPath(row));
+    }
+
+    private String nextRevision() {
+        revision++;
+        return "rev" + revision + "-";
+    }
+
+}
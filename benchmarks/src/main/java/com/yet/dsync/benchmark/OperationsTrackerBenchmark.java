@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2017 Yuriy Tkach
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.yet.dsync.benchmark;
+
+import com.yet.dsync.service.GlobalOperationsTracker;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the timer wheel tracker with the previous implementation, which
+ * scheduled a separate removal task for every stopped path. Run with
+ * {@code -prof gc} to see the allocation rate of each of them. The contended
+ * group checks paths from watcher threads while processing threads keep
+ * starting and stopping operations.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class OperationsTrackerBenchmark {
+
+    private static final int PATHS = 100_000;
+
+    @Param({"wheel", "scheduled"})
+    private String tracker;
+
+    private Tracker operationsTracker;
+
+    private String[] paths;
+
+    @Setup
+    public void setUp() {
+        operationsTracker = "wheel".equals(tracker) ? new WheelTracker() : new ScheduledTracker();
+
+        paths = new String[PATHS];
+        for (int i = 0; i < PATHS; i++) {
+            paths[i] = "/folder" + i % 100 + "/file" + i + ".txt";
+            operationsTracker.start(paths[i]);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        operationsTracker.close();
+    }
+
+    @Benchmark
+    public boolean isTrackedHit() {
+        return operationsTracker.isTracked(paths[ThreadLocalRandom.current().nextInt(PATHS)]);
+    }
+
+    @Benchmark
+    public boolean isTrackedMiss() {
+        return operationsTracker.isTracked("/missing/file" + ThreadLocalRandom.current().nextInt(PATHS));
+    }
+
+    @Benchmark
+    public void startStop() {
+        final String path = paths[ThreadLocalRandom.current().nextInt(PATHS)];
+        operationsTracker.start(path);
+        operationsTracker.stop(path);
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(6)
+    public boolean contendedIsTracked() {
+        return isTrackedHit();
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(2)
+    public void contendedStartStop() {
+        startStop();
+    }
+
+    private interface Tracker {
+        void start(String pathLower);
+
+        void stop(String pathLower);
+
+        boolean isTracked(String pathLower);
+
+        void close();
+    }
+
+    private static class WheelTracker implements Tracker {
+        private final GlobalOperationsTracker delegate = new GlobalOperationsTracker();
+
+        @Override
+        public void start(final String pathLower) {
+            delegate.start(pathLower);
+        }
+
+        @Override
+        public void stop(final String pathLower) {
+            delegate.stop(pathLower);
+        }
+
+        @Override
+        public boolean isTracked(final String pathLower) {
+            return delegate.isTracked(pathLower);
+        }
+
+        @Override
+        public void close() {
+            // sweeping thread is a daemon
+        }
+    }
+
+    /**
+     * Copy of the tracker that scheduled one removal task per stopped path
+     */
+    private static class ScheduledTracker implements Tracker {
+        private static final int WAIT_TIME_BEFORE_TRACK_REMOVE_SEC = 3;
+        private static final int SCHEDULED_POOL_SIZE = 5;
+
+        private final ConcurrentMap<String, Boolean> trackMap = new ConcurrentHashMap<>();
+        private final ScheduledExecutorService scheduledExecutorService =
+            Executors.newScheduledThreadPool(SCHEDULED_POOL_SIZE);
+
+        @Override
+        public void start(final String pathLower) {
+            trackMap.putIfAbsent(pathLower, Boolean.TRUE);
+        }
+
+        @Override
+        public void stop(final String pathLower) {
+            trackMap.put(pathLower, Boolean.FALSE);
+            scheduledExecutorService.schedule(() -> trackMap.remove(pathLower),
+                WAIT_TIME_BEFORE_TRACK_REMOVE_SEC, TimeUnit.SECONDS);
+        }
+
+        @Override
+        public boolean isTracked(final String pathLower) {
+            return trackMap.containsKey(pathLower);
+        }
+
+        @Override
+        public void close() {
+            scheduledExecutorService.shutdownNow();
+        }
+    }
+
+}
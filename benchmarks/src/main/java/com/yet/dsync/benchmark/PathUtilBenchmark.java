@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2017 Yuriy Tkach
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+
+package com.yet.dsync.benchmark;
+
+import com.yet.dsync.util.PathUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures conversion of the local path from a watch event into the Dropbox
+ * path, which is done for every local change.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PathUtilBenchmark {
+
+    private final File localDir = new File("/home/user/Dropbox");
+
+    private final String localDirPath = localDir.getAbsolutePath();
+
+    private final Path fullPath = Paths.get(localDirPath, "Projects", "dsync-client", "src", "main", "java",
+        "com", "yet", "dsync", "DSyncClient.java");
+
+    private final String fullPathString = fullPath.toString();
+
+    @Benchmark
+    public String extractFromStrings() {
+        return PathUtil.extractDropboxPath(localDirPath, fullPathString);
+    }
+
+    @Benchmark
+    public String extractFromPath() {
+        return PathUtil.extractDropboxPath(localDirPath, fullPath);
+    }
+
+    @Benchmark
+    public String extractFromFileAndPath() {
+        return PathUtil.extractDropboxPath(localDir, fullPath);
+    }
+
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2017 Yuriy Tkach
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+
+package com.yet.dsync.benchmark;
+
+import com.yet.dsync.service.AbstractChangeProcessingService;
+import com.yet.dsync.service.GlobalOperationsTracker;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures how fast changes can be scheduled for processing by several
+ * producers, with the mix of folders, small and big files. Processing itself
+ * does nothing, so the numbers show the cost of tracking check, queueing and
+ * hand-off to the processing threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(2)
+public class ScheduleProcessingBenchmark {
+
+    private static final int CHANGES = 10_000;
+
+    private static final long MAX_FILE_SIZE = 1024 * 1024;
+
+    private NoopProcessingService processingService;
+
+    private Change[] changes;
+
+    @Setup
+    public void setUp() {
+        processingService = new NoopProcessingService(new GlobalOperationsTracker());
+
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        changes = new Change[CHANGES];
+        for (int i = 0; i < CHANGES; i++) {
+            final boolean file = random.nextInt(10) > 0;
+            changes[i] = new Change("/folder" + i % 100 + "/entry" + i, file,
+                file ? random.nextLong(MAX_FILE_SIZE) : 0);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        processingService.shutdown();
+    }
+
+    @Benchmark
+    public void scheduleProcessing() {
+        processingService.scheduleProcessing(changes[ThreadLocalRandom.current().nextInt(CHANGES)]);
+    }
+
+    private static class Change {
+        private final String pathLower;
+        private final boolean file;
+        private final long size;
+
+        Change(final String pathLower, final boolean file, final long size) {
+            this.pathLower = pathLower;
+            this.file = file;
+            this.size = size;
+        }
+    }
+
+    private static class NoopProcessingService extends AbstractChangeProcessingService<Change> {
+
+        private final LongAdder processed = new LongAdder();
+
+        NoopProcessingService(final GlobalOperationsTracker globalOperationsTracker) {
+            super("bench-processing", globalOperationsTracker);
+        }
+
+        @Override
+        protected void processChange(final Change changeData) {
+            processed.increment();
+        }
+
+        @Override
+        protected boolean isFile(final Change changeData) {
+            return changeData.file;
+        }
+
+        @Override
+        protected boolean isDeleteData(final Change changeData) {
+            return false;
+        }
+
+        @Override
+        protected long getFileSize(final Change changeData) {
+            return changeData.size;
+        }
+
+        @Override
+        protected String extractPathLower(final Change changeData) {
+            return changeData.pathLower;
+        }
+    }
+
+}
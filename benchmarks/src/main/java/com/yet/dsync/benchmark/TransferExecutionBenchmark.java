@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2017 Yuriy Tkach
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+
+package com.yet.dsync.benchmark;
+
+import com.sun.net.httpserver.HttpServer;
+import com.yet.dsync.service.AbstractChangeProcessingService;
+import com.yet.dsync.service.ExecutionMode;
+import com.yet.dsync.service.GlobalOperationsTracker;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares the platform thread pools with virtual threads on transfers of
+ * small files. Each change downloads the file from a local fake Dropbox
+ * server, which answers after the configured latency, so the processing
+ * threads spend most of the time blocked as on the real link. Virtual mode
+ * requires Java 21, on older runtimes both modes run on platform threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TransferExecutionBenchmark {
+
+    private static final int CHANGES = 2_000;
+
+    private static final int FILE_SIZE = 16 * 1024;
+
+    @Param({"PLATFORM", "VIRTUAL"})
+    private ExecutionMode executionMode;
+
+    @Param({"20", "100"})
+    private int latencyMillis;
+
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private TransferService transferService;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        final byte[] content = new byte[FILE_SIZE];
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/download", exchange -> {
+            try {
+                TimeUnit.MILLISECONDS.sleep(latencyMillis);
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            exchange.sendResponseHeaders(200, content.length);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(content);
+            }
+        });
+        serverExecutor = Executors.newCachedThreadPool();
+        server.setExecutor(serverExecutor);
+        server.start();
+
+        final URL url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/download");
+        transferService = new TransferService(new GlobalOperationsTracker(), executionMode, url);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        transferService.shutdown();
+        server.stop(0);
+        serverExecutor.shutdownNow();
+    }
+
+    @Benchmark
+    public void transferSmallFiles() throws InterruptedException {
+        final long batch = transferService.nextBatch();
+        for (int i = 0; i < CHANGES; i++) {
+            transferService.scheduleProcessing("/batch" + batch + "/file" + i);
+        }
+        transferService.awaitProcessed(CHANGES);
+    }
+
+    private static class TransferService extends AbstractChangeProcessingService<String> {
+
+        private final URL url;
+
+        private final Semaphore processed = new Semaphore(0);
+
+        private final AtomicLong batches = new AtomicLong();
+
+        TransferService(final GlobalOperationsTracker globalOperationsTracker,
+                        final ExecutionMode executionMode,
+                        final URL url) {
+            super("bench-transfer", globalOperationsTracker, executionMode);
+            this.url = url;
+        }
+
+        long nextBatch() {
+            return batches.incrementAndGet();
+        }
+
+        void awaitProcessed(final int changes) throws InterruptedException {
+            processed.acquire(changes);
+        }
+
+        @Override
+        protected void processChange(final String changeData) {
+            try {
+                final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+                try (InputStream body = connection.getInputStream()) {
+                    final byte[] buffer = new byte[FILE_SIZE];
+                    while (body.read(buffer) >= 0) {
+                        // content is dropped
+                    }
+                }
+            } catch (final IOException ex) {
+                throw new UncheckedIOException(ex);
+            } finally {
+                processed.release();
+            }
+        }
+
+        @Override
+        protected boolean isFile(final String changeData) {
+            return true;
+        }
+
+        @Override
+        protected boolean isDeleteData(final String changeData) {
+            return false;
+        }
+
+        @Override
+        protected long getFileSize(final String changeData) {
+            return FILE_SIZE;
+        }
+
+        @Override
+        protected String extractPathLower(final String changeData) {
+            return changeData;
+        }
+    }
+
+}
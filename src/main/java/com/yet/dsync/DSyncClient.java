@@ -14,17 +14,31 @@
 
 package com.yet.dsync;
 
+import com.yet.dsync.dao.CachedMetadataDao;
 import com.yet.dsync.dao.ConfigDao;
 import com.yet.dsync.dao.DatabaseInit;
+import com.yet.dsync.dao.DatabaseWriter;
 import com.yet.dsync.dao.MetadataDao;
+import com.yet.dsync.dao.ReadConnectionPool;
+import com.yet.dsync.dao.UploadSessionDao;
+import com.yet.dsync.dto.DropboxFileData;
 import com.yet.dsync.dto.UserData;
 import com.yet.dsync.exception.DSyncClientException;
+import com.yet.dsync.service.AbstractChangeProcessingService;
+import com.yet.dsync.service.ContentHasher;
 import com.yet.dsync.service.DownloadService;
+import com.yet.dsync.service.DropboxChange;
 import com.yet.dsync.service.DropboxService;
+import com.yet.dsync.service.ExecutionMode;
 import com.yet.dsync.service.GlobalOperationsTracker;
+import com.yet.dsync.service.InitialSyncMode;
+import com.yet.dsync.service.LargeFileUploader;
 import com.yet.dsync.service.LocalFolderService;
+import com.yet.dsync.service.OfflineChangeReconciler;
 import com.yet.dsync.service.UploadService;
 import com.yet.dsync.util.Config;
+import com.yet.dsync.util.ParallelTreeWalker;
+import com.yet.dsync.watcher.WatcherBackendType;
 import org.apache.commons.cli.BasicParser;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -37,6 +51,7 @@ import org.apache.logging.log4j.Logger;
 
 import java.io.File;
 import java.sql.Connection;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -45,12 +60,65 @@ public class DSyncClient {
 
     private static final Logger LOG = LogManager.getLogger(DSyncClient.class);
 
+    private static final int DEFAULT_LISTING_THREADS = 4;
+
+    private static final int READ_CONNECTIONS = 4;
+
+    private static final int METADATA_CACHE_SIZE = 100_000;
+
+    private static final int DEFAULT_UPLOAD_CHUNK_MB = 32;
+
+    private static final int DEFAULT_UPLOAD_PARALLELISM = 4;
+
+    private static final int DEFAULT_SEGMENTED_DOWNLOAD_MB = 256;
+
+    private static final int DEFAULT_DOWNLOAD_CONNECTIONS = 4;
+
+    private static final int BYTES_IN_MB = 1024 * 1024;
+
+    private static final int HASHING_THREADS = Runtime.getRuntime().availableProcessors();
+
+    private static final int CONTENT_HASH_CACHE_SIZE = 10_000;
+
+    private static final int DEFAULT_WALK_PARALLELISM = Runtime.getRuntime().availableProcessors();
+
     private DropboxService dropboxService;
     private LocalFolderService localFolderService;
     private DownloadService downloadService;
     private UploadService uploadService;
+    private OfflineChangeReconciler offlineChangeReconciler;
     private ConfigDao configDao;
     private MetadataDao metadataDao;
+    private UploadSessionDao uploadSessionDao;
+    private ParallelTreeWalker treeWalker;
+
+    private final InitialSyncMode syncMode;
+    private final int listingThreads;
+    private final int uploadChunkSize;
+    private final int uploadParallelism;
+    private final long segmentedDownloadThreshold;
+    private final int downloadConnections;
+    private final WatcherBackendType watcherBackendType;
+    private final int walkParallelism;
+    private final ExecutionMode executionMode;
+    private final int virtualConcurrency;
+
+    public DSyncClient(final InitialSyncMode syncMode, final int listingThreads,
+                       final int uploadChunkSize, final int uploadParallelism,
+                       final long segmentedDownloadThreshold, final int downloadConnections,
+                       final WatcherBackendType watcherBackendType, final int walkParallelism,
+                       final ExecutionMode executionMode, final int virtualConcurrency) {
+        this.syncMode = syncMode;
+        this.listingThreads = listingThreads;
+        this.uploadChunkSize = uploadChunkSize;
+        this.uploadParallelism = uploadParallelism;
+        this.segmentedDownloadThreshold = segmentedDownloadThreshold;
+        this.downloadConnections = downloadConnections;
+        this.watcherBackendType = watcherBackendType;
+        this.walkParallelism = walkParallelism;
+        this.executionMode = executionMode;
+        this.virtualConcurrency = virtualConcurrency;
+    }
 
     public static void main(final String[] args) throws ParseException {
         final Options options = createCommandLineOptions();
@@ -66,9 +134,46 @@ public class DSyncClient {
         } else {
             final boolean reset = cmd.hasOption('r');
             final String dbPath = cmd.getOptionValue("db", getDefaultDbPath());
+            final InitialSyncMode syncMode = InitialSyncMode.fromOption(
+                    cmd.getOptionValue("sm", InitialSyncMode.SERIAL.name()));
+
+            final int listingThreads = Integer.parseInt(
+                    cmd.getOptionValue("lt", String.valueOf(DEFAULT_LISTING_THREADS)));
+
+            final int uploadChunkSize = parseUploadChunkSize(
+                    cmd.getOptionValue("uc", String.valueOf(DEFAULT_UPLOAD_CHUNK_MB)));
+            final int uploadParallelism = Integer.parseInt(
+                    cmd.getOptionValue("up", String.valueOf(DEFAULT_UPLOAD_PARALLELISM)));
+
+            final long segmentedDownloadThreshold = Long.parseLong(
+                    cmd.getOptionValue("sd", String.valueOf(DEFAULT_SEGMENTED_DOWNLOAD_MB))) * BYTES_IN_MB;
+            final int downloadConnections = Integer.parseInt(
+                    cmd.getOptionValue("dc", String.valueOf(DEFAULT_DOWNLOAD_CONNECTIONS)));
+
+            final WatcherBackendType watcherBackendType = WatcherBackendType.fromOption(
+                    cmd.getOptionValue("wb", WatcherBackendType.AUTO.name()));
+            final int walkParallelism = Integer.parseInt(
+                    cmd.getOptionValue("wp", String.valueOf(DEFAULT_WALK_PARALLELISM)));
+            final ExecutionMode executionMode = ExecutionMode.fromOption(
+                    cmd.getOptionValue("em", ExecutionMode.PLATFORM.name()));
+            final int virtualConcurrency = Integer.parseInt(cmd.getOptionValue("vc",
+                    String.valueOf(AbstractChangeProcessingService.DEFAULT_VIRTUAL_CONCURRENCY)));
+
+            new DSyncClient(syncMode, listingThreads, uploadChunkSize, uploadParallelism,
+                    segmentedDownloadThreshold, downloadConnections, watcherBackendType, walkParallelism,
+                    executionMode, virtualConcurrency).start(dbPath, reset);
+        }
+    }
 
-            new DSyncClient().start(dbPath, reset);
+    private static int parseUploadChunkSize(final String chunkSizeMb) {
+        final long chunkSize = Long.parseLong(chunkSizeMb) * BYTES_IN_MB;
+        if (chunkSize <= 0 || chunkSize > DropboxService.MAX_FILE_UPLOAD_CHUNK
+                || chunkSize % LargeFileUploader.CHUNK_SIZE_UNIT != 0) {
+            throw new DSyncClientException("Upload chunk size must be a multiple of "
+                    + LargeFileUploader.CHUNK_SIZE_UNIT / BYTES_IN_MB + " MB, up to "
+                    + DropboxService.MAX_FILE_UPLOAD_CHUNK / BYTES_IN_MB + " MB");
         }
+        return (int) chunkSize;
     }
 
     private static String getDefaultDbPath() {
@@ -82,6 +187,30 @@ public class DSyncClient {
         options.addOption("db", "database", true, "Full path to database");
         options.addOption("r", "reset", false,
                 "Remove the database and start configuration procedure");
+        options.addOption("sm", "sync-mode", true,
+                "Initial sync mode: serial (default), pipelined or partitioned");
+        options.addOption("lt", "listing-threads", true,
+                "Number of folders listed in parallel in partitioned initial sync mode");
+        options.addOption("uc", "upload-chunk", true,
+                "Size of the chunk in MB for uploading large files, a multiple of 4 (default "
+                        + DEFAULT_UPLOAD_CHUNK_MB + ")");
+        options.addOption("up", "upload-parallelism", true,
+                "Number of chunks of large files uploaded in parallel (default "
+                        + DEFAULT_UPLOAD_PARALLELISM + ")");
+        options.addOption("sd", "segmented-download", true,
+                "Size in MB from which files are downloaded in segments (default "
+                        + DEFAULT_SEGMENTED_DOWNLOAD_MB + ")");
+        options.addOption("dc", "download-connections", true,
+                "Number of connections for segmented download (default " + DEFAULT_DOWNLOAD_CONNECTIONS + ")");
+        options.addOption("wb", "watcher-backend", true,
+                "Local folder watcher: auto (default), jdk or inotify");
+        options.addOption("wp", "walk-parallelism", true,
+                "Number of threads walking the local folder tree (default number of processors)");
+        options.addOption("em", "execution-mode", true,
+                "Transfer threads: platform (default) or virtual, which requires Java 21");
+        options.addOption("vc", "virtual-concurrency", true,
+                "Number of folders and small files transferred at once in virtual execution mode (default "
+                        + AbstractChangeProcessingService.DEFAULT_VIRTUAL_CONCURRENCY + ")");
         options.addOption("h", "help", false, "Display this help");
         return options;
     }
@@ -94,11 +223,21 @@ public class DSyncClient {
 
         greeting();
 
-        if (!isInitialSyncDone()) {
+        if (isInitialSyncDone()) {
+            // Dropbox changes are fetched first, and conflicted local files are moved away before the download
+            offlineChangeReconciler.reconcile();
+            downloadService.downloadAllNotLoaded();
+        } else if (syncMode.isDownloadingDuringSync()) {
+            // Entries persisted by previously interrupted sync won't come again
+            downloadService.downloadAllNotLoaded();
             initialSync();
+        } else {
+            initialSync();
+            downloadService.downloadAllNotLoaded();
         }
 
-        downloadService.downloadAllNotLoaded();
+        uploadService.resumeInterruptedUploads();
+        offlineChangeReconciler.startRunningMark();
 
         final ExecutorService pool = Executors.newFixedThreadPool(2);
 
@@ -146,19 +285,33 @@ public class DSyncClient {
             dbInit.createTables(connection);
             LOG.debug("Tables created successfully");
         }
+        dbInit.migrate(connection);
 
-        configDao = new ConfigDao(connection);
-        metadataDao = new MetadataDao(connection);
+        final DatabaseWriter databaseWriter = new DatabaseWriter(connection);
+        final ReadConnectionPool readConnectionPool = new ReadConnectionPool(READ_CONNECTIONS,
+                () -> dbInit.createReadOnlyConnection(dbDir.getAbsolutePath(), dbName));
+
+        configDao = new ConfigDao(databaseWriter, readConnectionPool);
+        metadataDao = new CachedMetadataDao(databaseWriter, readConnectionPool, METADATA_CACHE_SIZE);
+        uploadSessionDao = new UploadSessionDao(databaseWriter, readConnectionPool);
     }
 
     private void initServices() {
         final GlobalOperationsTracker globalOperationsTracker = new GlobalOperationsTracker();
+        treeWalker = new ParallelTreeWalker(walkParallelism);
+
+        localFolderService = new LocalFolderService(configDao, metadataDao, globalOperationsTracker);
+        dropboxService = new DropboxService(configDao, uploadSessionDao, uploadChunkSize, uploadParallelism);
 
-        localFolderService = new LocalFolderService(configDao, globalOperationsTracker);
-        dropboxService = new DropboxService(configDao);
+        final ContentHasher contentHasher = new ContentHasher(HASHING_THREADS, CONTENT_HASH_CACHE_SIZE);
 
-        downloadService = new DownloadService(globalOperationsTracker, metadataDao, localFolderService, dropboxService);
-        uploadService = new UploadService(globalOperationsTracker, metadataDao, localFolderService, dropboxService);
+        downloadService = new DownloadService(globalOperationsTracker, metadataDao, localFolderService, dropboxService,
+                contentHasher, segmentedDownloadThreshold, downloadConnections, executionMode, virtualConcurrency);
+        uploadService = new UploadService(globalOperationsTracker, metadataDao, uploadSessionDao,
+                localFolderService, dropboxService, contentHasher, executionMode, virtualConcurrency);
+        offlineChangeReconciler = new OfflineChangeReconciler(configDao, metadataDao, localFolderService,
+                contentHasher, treeWalker, dropboxService, this::applyDropboxChanges,
+                uploadService::scheduleProcessing);
     }
 
     private void startServices() {
@@ -183,32 +336,40 @@ public class DSyncClient {
     }
 
     private void initialSync() {
-        final Runnable syncThread = dropboxService.createInitialSyncThread(fileDataSet -> {
-            fileDataSet.forEach(fd -> LOG.info("DROPBOX {}", () -> fd.toString()));
-            LOG.debug("Writing DB: {} records", () -> fileDataSet.size());
+        final DropboxChange syncListener = fileDataSet -> {
+            fileDataSet.forEach(fd -> LOG.trace("DROPBOX {}", () -> fd.toString()));
             metadataDao.write(fileDataSet);
-            LOG.debug("Writing DB done");
-        });
+
+            if (syncMode.isDownloadingDuringSync()) {
+                fileDataSet.forEach(downloadService::scheduleProcessing);
+            }
+        };
+        final Runnable syncThread = dropboxService.createInitialSyncThread(syncMode, listingThreads,
+                syncListener);
         syncThread.run();
 
         configDao.write(Config.INITIAL_SYNC, ConfigDao.YES);
     }
 
     private CompletableFuture<Void> runPolling(final ExecutorService pool) {
-        final Runnable pollThread = dropboxService.createPollingThread(fileDataSet -> {
-            fileDataSet.forEach(dropboxFileData -> {
-                LOG.info("DROPBOX {}", () -> dropboxFileData.toString());
-                downloadService.scheduleProcessing(dropboxFileData);
-            });
-        });
+        final Runnable pollThread = dropboxService.createPollingThread(this::applyDropboxChanges);
         return CompletableFuture.runAsync(pollThread, pool);
     }
 
+    private void applyDropboxChanges(final Set<DropboxFileData> fileDataSet) {
+        metadataDao.upsert(fileDataSet);
+
+        fileDataSet.forEach(dropboxFileData -> {
+            LOG.info("DROPBOX {}", () -> dropboxFileData.toString());
+            downloadService.scheduleProcessing(dropboxFileData);
+        });
+    }
+
     private CompletableFuture<Void> runWatching(final ExecutorService pool) {
         final Runnable watchThread = localFolderService.createFolderWatchingThread(localFolderData -> {
             LOG.info(localFolderData);
             uploadService.scheduleProcessing(localFolderData);
-        });
+        }, watcherBackendType, treeWalker);
         return CompletableFuture.runAsync(watchThread, pool);
     }
 
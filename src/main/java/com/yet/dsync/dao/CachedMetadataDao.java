@@ -0,0 +1,239 @@
+/*
+ * Copyright (c) 2017 Yuriy Tkach
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.yet.dsync.dao;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.yet.dsync.dto.DropboxChangeType;
+import com.yet.dsync.dto.DropboxFileData;
+import com.yet.dsync.exception.DSyncClientException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Metadata dao that keeps recently used entries in memory, keyed by lower
+ * path. Lookups are read-through, so missing paths are cached as well.
+ * Writes go to the database first and then update the cache, so the cache
+ * never holds data that is not yet committed.
+ *
+ * <p>Renames keep the id, so the id to path mapping of cached entries is
+ * tracked to drop the entry under the old path. Cached paths are also kept
+ * sorted, so a deleted folder drops its subtree by a range lookup instead
+ * of scanning the whole cache. Loaded flag is not part of
+ * the cached data, so {@link #writeLoadedFlag(String, boolean)} needs no
+ * cache update.
+ */
+public class CachedMetadataDao extends MetadataDao {
+
+    private static final Logger LOG = LogManager.getLogger(CachedMetadataDao.class);
+
+    /* Cache statistics are logged once per this number of lookups */
+    private static final long STATS_LOG_INTERVAL = 10_000;
+
+    private final Cache<String, Optional<DropboxFileData>> cache;
+
+    /* Lower path of the cached entry for each id */
+    private final Map<String, String> cachedPaths = new ConcurrentHashMap<>();
+
+    /*
+     * Sorted lower paths of the cache keys. Path is added before it goes into
+     * the cache and removed after it leaves, so it may hold extra paths, but
+     * never misses a cached one.
+     */
+    private final NavigableSet<String> cachedKeys = new ConcurrentSkipListSet<>();
+
+    private final AtomicLong lookups = new AtomicLong();
+
+    public CachedMetadataDao(final DatabaseWriter databaseWriter,
+                             final ReadConnectionPool readConnectionPool,
+                             final long maximumSize) {
+        super(databaseWriter, readConnectionPool);
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .recordStats()
+                .removalListener(this::onRemoval)
+                .build();
+    }
+
+    @Override
+    public DropboxFileData readByLowerPath(final String lowerPath) {
+        try {
+            final Optional<DropboxFileData> fileData = cache.get(lowerPath, () -> {
+                cachedKeys.add(lowerPath);
+                final DropboxFileData loaded = super.readByLowerPath(lowerPath);
+                if (loaded != null) {
+                    cachedPaths.put(loaded.getId(), lowerPath);
+                }
+                return Optional.ofNullable(loaded);
+            });
+            return fileData.orElse(null);
+
+        } catch (final ExecutionException | UncheckedExecutionException ex) {
+            throw new DSyncClientException(ex.getCause());
+        } finally {
+            logStats();
+        }
+    }
+
+    @Override
+    public void write(final DropboxFileData fileData) {
+        super.write(fileData);
+        cacheChange(fileData);
+    }
+
+    @Override
+    public void write(final Set<DropboxFileData> fileDataSet) {
+        super.write(fileDataSet);
+        fileDataSet.forEach(this::cacheWritten);
+    }
+
+    @Override
+    public void upsert(final Set<DropboxFileData> fileDataSet) {
+        super.upsert(fileDataSet);
+        fileDataSet.forEach(this::cacheChange);
+    }
+
+    @Override
+    public void deleteByLowerPath(final String pathLower) {
+        super.deleteByLowerPath(pathLower);
+        synchronized (cachedPaths) {
+            forgetCachedId(pathLower);
+            cachePut(pathLower, Optional.empty());
+        }
+    }
+
+    @Override
+    public void deleteTreeByLowerPath(final String pathLower) {
+        super.deleteTreeByLowerPath(pathLower);
+        forgetTree(pathLower);
+    }
+
+    /**
+     * Updates the cache after the change is applied by upsert. Deleted entry
+     * takes everything under it away, so the whole subtree is dropped.
+     */
+    private void cacheChange(final DropboxFileData fileData) {
+        if (DropboxChangeType.DELETE == fileData.getChangeType()) {
+            forgetTree(fileData.getPathLower());
+        } else {
+            cacheWritten(fileData);
+        }
+    }
+
+    /**
+     * Drops the entry and everything cached under it. Entry that is known to
+     * be a file has nothing under it, so the subtree lookup is skipped.
+     */
+    private void forgetTree(final String pathLower) {
+        synchronized (cachedPaths) {
+            final Optional<DropboxFileData> cached = cache.getIfPresent(pathLower);
+            if (cached == null || !cached.isPresent() || !cached.get().isFile()) {
+                forgetSubtree(pathLower);
+            }
+            forgetCachedId(pathLower);
+            cachePut(pathLower, Optional.empty());
+        }
+    }
+
+    private void forgetSubtree(final String pathLower) {
+        final List<String> subtreePaths = new ArrayList<>(
+                cachedKeys.subSet(pathLower + "/", pathLower + "/\uffff"));
+        for (final String path : subtreePaths) {
+            forgetCachedId(path);
+        }
+        cache.invalidateAll(subtreePaths);
+    }
+
+    /**
+     * Puts written data into the cache the same way it is read back from the
+     * database. If the id was cached under other path, that path is known to
+     * be empty now.
+     */
+    private void cacheWritten(final DropboxFileData fileData) {
+        final DropboxFileData stored = new DropboxFileData.Builder()
+                .init(fileData)
+                .changeType(null)
+                .build();
+        final String pathLower = stored.getPathLower();
+
+        synchronized (cachedPaths) {
+            forgetCachedId(pathLower);
+
+            final String oldPath = cachedPaths.put(stored.getId(), pathLower);
+            if (oldPath != null && !oldPath.equals(pathLower)) {
+                cachePut(oldPath, Optional.empty());
+            }
+            cachePut(pathLower, Optional.of(stored));
+        }
+    }
+
+    /**
+     * Removes id mapping of the entry that is currently cached under the path,
+     * as the row with that id no longer holds the path.
+     */
+    private void forgetCachedId(final String pathLower) {
+        final Optional<DropboxFileData> cached = cache.getIfPresent(pathLower);
+        if (cached != null && cached.isPresent()) {
+            cachedPaths.remove(cached.get().getId(), pathLower);
+        }
+    }
+
+    private void cachePut(final String pathLower, final Optional<DropboxFileData> fileData) {
+        cachedKeys.add(pathLower);
+        cache.put(pathLower, fileData);
+    }
+
+    private void onRemoval(final RemovalNotification<String, Optional<DropboxFileData>> notification) {
+        if (notification.getCause() == RemovalCause.REPLACED) {
+            return;
+        }
+        final String pathLower = notification.getKey();
+        final Optional<DropboxFileData> value = notification.getValue();
+        if (value != null && value.isPresent()) {
+            cachedPaths.remove(value.get().getId(), pathLower);
+        }
+
+        /* Path could be cached again meanwhile, then it must stay indexed */
+        cachedKeys.remove(pathLower);
+        if (cache.asMap().containsKey(pathLower)) {
+            cachedKeys.add(pathLower);
+        }
+    }
+
+    private void logStats() {
+        if (lookups.incrementAndGet() % STATS_LOG_INTERVAL == 0) {
+            final CacheStats stats = cache.stats();
+            LOG.debug("Metadata cache: size {}, hits {}, misses {}, hit rate {}%, evictions {}",
+                cache.size(), stats.hitCount(), stats.missCount(),
+                Math.round(stats.hitRate() * 100), stats.evictionCount());
+        }
+    }
+
+}
@@ -14,16 +14,11 @@
 
 package com.yet.dsync.dao;
 
-import com.yet.dsync.exception.DSyncClientException;
 import com.yet.dsync.util.Config;
 import org.apache.commons.lang3.StringUtils;
 
-import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
-import java.sql.SQLException;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
 
 public class ConfigDao {
 
@@ -39,25 +34,17 @@ public class ConfigDao {
     private static final String INSERT_STATEMENT = "INSERT INTO CONFIG (KEY,VALUE) VALUES (?,?)";
     private static final String UPDATE_STATEMENT = "UPDATE CONFIG SET VALUE = ? WHERE KEY = ?";
 
-    private final PreparedStatement readStatement;
-    private final PreparedStatement insertStatement;
-    private final PreparedStatement updateStatement;
+    private final DatabaseWriter databaseWriter;
+    private final ReadConnectionPool readConnectionPool;
 
-    private final Lock syncLock = new ReentrantLock(true);
-
-    public ConfigDao(final Connection connection) {
-        try {
-            readStatement = connection.prepareStatement(SELECT_STATEMENT);
-            insertStatement = connection.prepareStatement(INSERT_STATEMENT);
-            updateStatement = connection.prepareStatement(UPDATE_STATEMENT);
-        } catch (final SQLException ex) {
-            throw new DSyncClientException(ex);
-        }
+    public ConfigDao(final DatabaseWriter databaseWriter, final ReadConnectionPool readConnectionPool) {
+        this.databaseWriter = databaseWriter;
+        this.readConnectionPool = readConnectionPool;
     }
 
     public String read(final Config key) {
-        syncLock.lock();
-        try {
+        return readConnectionPool.read(statements -> {
+            final PreparedStatement readStatement = statements.prepare(SELECT_STATEMENT);
             readStatement.setString(1, key.name());
 
             try (ResultSet resultSet = readStatement.executeQuery()) {
@@ -67,36 +54,31 @@ public class ConfigDao {
                     return StringUtils.EMPTY;
                 }
             }
-        } catch (final SQLException ex) {
-            throw new DSyncClientException(ex);
-        } finally {
-            syncLock.unlock();
-        }
+        });
     }
 
     public void write(final Config key, final String value) {
-        syncLock.lock();
-        try {
+        databaseWriter.execute(statements -> {
+            final PreparedStatement readStatement = statements.prepare(SELECT_STATEMENT);
             readStatement.setString(1, key.name());
 
             try (ResultSet resultSet = readStatement.executeQuery()) {
                 if (resultSet.next()) {
+                    final PreparedStatement updateStatement = statements.prepare(UPDATE_STATEMENT);
                     updateStatement.setString(1, value);
                     updateStatement.setString(2, key.name());
 
                     updateStatement.executeUpdate();
                 } else {
+                    final PreparedStatement insertStatement = statements.prepare(INSERT_STATEMENT);
                     insertStatement.setString(1, key.name());
                     insertStatement.setString(2, value);
 
                     insertStatement.executeUpdate();
                 }
             }
-        } catch (final SQLException ex) {
-            throw new DSyncClientException(ex);
-        } finally {
-            syncLock.unlock();
-        }
+            return null;
+        });
     }
 
 }
@@ -15,17 +15,50 @@
 package com.yet.dsync.dao;
 
 import com.yet.dsync.exception.DSyncClientException;
+import org.sqlite.SQLiteConfig;
+import org.sqlite.SQLiteConfig.JournalMode;
+import org.sqlite.SQLiteConfig.SynchronousMode;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 import java.io.File;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.Arrays;
+import java.util.List;
 
 public class DatabaseInit {
 
+    private static final Logger LOG = LogManager.getLogger(DatabaseInit.class);
+
     private static final String JDBC_PREFIX = "jdbc:sqlite:";
 
+    /**
+     * Schema migrations in the order they are applied. Schema created by
+     * {@link #createTables(Connection)} has version 0, and migration at index
+     * N moves the schema to version N + 1. The version is stored in SQLite
+     * user_version pragma. New migrations must only be added to the end.
+     */
+    private static final List<Migration> MIGRATIONS = Arrays.asList(
+        // 1: Indexes for lookups by lower path and for not loaded entries
+        stmt -> {
+            final int duplicates = stmt.executeUpdate(MetadataDao.DELETE_DUPLICATE_PLOWER_STATEMENT);
+            if (duplicates > 0) {
+                LOG.warn("Removed {} metadata rows that duplicated the path of other rows", duplicates);
+            }
+            stmt.executeUpdate(MetadataDao.CREATE_PLOWER_INDEX_STATEMENT);
+            stmt.executeUpdate(MetadataDao.CREATE_NOT_LOADED_INDEX_STATEMENT);
+        },
+        // 2: State of large file uploads, so they can be resumed
+        stmt -> stmt.executeUpdate(UploadSessionDao.CREATE_TABLE_STATEMENT),
+        // 3: Dropbox content hash of files
+        stmt -> stmt.executeUpdate(MetadataDao.ADD_HASH_COLUMN_STATEMENT)
+    );
+
     public DatabaseInit() {
         try {
             Class.forName("org.sqlite.JDBC");
@@ -34,9 +67,34 @@ public class DatabaseInit {
         }
     }
 
+    /**
+     * Creates read-write connection and switches database to WAL mode, so
+     * readers are not blocked by the writer. There must be only one such
+     * connection, see {@link DatabaseWriter}.
+     *
+     * @param dbFolder
+     *            folder with database file
+     * @param dbName
+     *            database file name
+     * @return connection
+     */
     public Connection createConnection(final String dbFolder, final String dbName) {
+        final SQLiteConfig config = new SQLiteConfig();
+        config.setJournalMode(JournalMode.WAL);
+        config.setSynchronous(SynchronousMode.NORMAL);
+        return createConnection(dbFolder, dbName, config);
+    }
+
+    public Connection createReadOnlyConnection(final String dbFolder, final String dbName) {
+        final SQLiteConfig config = new SQLiteConfig();
+        config.setReadOnly(true);
+        return createConnection(dbFolder, dbName, config);
+    }
+
+    private Connection createConnection(final String dbFolder, final String dbName, final SQLiteConfig config) {
         try {
-            return DriverManager.getConnection(JDBC_PREFIX + dbFolder + File.separator + dbName);
+            return DriverManager.getConnection(JDBC_PREFIX + dbFolder + File.separator + dbName,
+                    config.toProperties());
         } catch (final SQLException ex) {
             throw new DSyncClientException(ex);
         }
@@ -63,4 +121,52 @@ public class DatabaseInit {
         }
     }
 
+    /**
+     * Applies all migrations that were not yet applied to the database. Each
+     * migration is executed in its own transaction together with the version
+     * update, so failed migration leaves the database on previous version.
+     *
+     * @param connection
+     *            read-write connection
+     */
+    public void migrate(final Connection connection) {
+        try {
+            final int currentVersion = readSchemaVersion(connection);
+
+            for (int version = currentVersion + 1; version <= MIGRATIONS.size(); version++) {
+                LOG.info("Migrating database schema to version {}", version);
+                applyMigration(connection, MIGRATIONS.get(version - 1), version);
+            }
+        } catch (final SQLException ex) {
+            throw new DSyncClientException("Failed to migrate database schema", ex);
+        }
+    }
+
+    private int readSchemaVersion(final Connection connection) throws SQLException {
+        try (Statement stmt = connection.createStatement();
+             ResultSet resultSet = stmt.executeQuery("PRAGMA user_version")) {
+            return resultSet.next() ? resultSet.getInt(1) : 0;
+        }
+    }
+
+    private void applyMigration(final Connection connection, final Migration migration,
+                                final int version) throws SQLException {
+        connection.setAutoCommit(false);
+        try (Statement stmt = connection.createStatement()) {
+            migration.apply(stmt);
+            stmt.executeUpdate("PRAGMA user_version = " + version);
+            connection.commit();
+        } catch (final SQLException ex) {
+            connection.rollback();
+            throw ex;
+        } finally {
+            connection.setAutoCommit(true);
+        }
+    }
+
+    @FunctionalInterface
+    private interface Migration {
+        void apply(Statement stmt) throws SQLException;
+    }
+
 }
@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2017 Yuriy Tkach
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.yet.dsync.dao;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.yet.dsync.exception.DSyncClientException;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The only component that writes to the database. Write operations are
+ * submitted from any thread and executed by a single writer thread on its own
+ * connection. All operations that are waiting in the queue when the writer
+ * wakes up are executed in one transaction, so concurrent writers share a
+ * single commit. Each operation runs in its own savepoint, so failure of one
+ * operation doesn't roll back the others.
+ */
+public class DatabaseWriter {
+
+    private static final Logger LOG = LogManager.getLogger(DatabaseWriter.class);
+
+    private static final int MAX_OPERATIONS_PER_TRANSACTION = 256;
+
+    private final StatementCache statements;
+
+    private final BlockingQueue<WriteTask<?>> writeQueue = new LinkedBlockingQueue<>();
+
+    private final ExecutorService executorService;
+
+    public DatabaseWriter(final Connection connection) {
+        this.statements = new StatementCache(connection);
+
+        final ThreadFactory namedThreadFactory = new ThreadFactoryBuilder()
+                .setNameFormat("db-writer-%d").build();
+        this.executorService = Executors.newSingleThreadExecutor(namedThreadFactory);
+        startWriterThread();
+    }
+
+    @SuppressFBWarnings(value = "RV_RETURN_VALUE_IGNORED_BAD_PRACTICE",
+            justification = "Not interested in future from always running thread")
+    private void startWriterThread() {
+        executorService.submit(new WriterThread());
+    }
+
+    /**
+     * Stops the writer thread. Operations that are still waiting in the queue
+     * are failed.
+     */
+    public void shutdown() {
+        executorService.shutdownNow();
+    }
+
+    /**
+     * Submits operation for asynchronous execution.
+     *
+     * @param operation
+     *            write operation
+     * @param <R>
+     *            type of the operation result
+     * @return future that is completed when the operation is committed
+     */
+    public <R> CompletableFuture<R> submit(final SqlOperation<R> operation) {
+        final WriteTask<R> task = new WriteTask<>(operation);
+        writeQueue.add(task);
+        return task.future;
+    }
+
+    /**
+     * Submits operation and waits until it is committed.
+     *
+     * @param operation
+     *            write operation
+     * @param <R>
+     *            type of the operation result
+     * @return result of the operation
+     */
+    public <R> R execute(final SqlOperation<R> operation) {
+        return await(submit(operation));
+    }
+
+    /**
+     * Waits for the submitted operation to be committed.
+     *
+     * @param future
+     *            future returned from {@link #submit(SqlOperation)}
+     * @param <R>
+     *            type of the operation result
+     * @return result of the operation
+     */
+    public static <R> R await(final CompletableFuture<R> future) {
+        try {
+            return future.join();
+        } catch (final CompletionException ex) {
+            if (ex.getCause() instanceof DSyncClientException) {
+                throw (DSyncClientException) ex.getCause();
+            } else {
+                throw new DSyncClientException(ex.getCause());
+            }
+        }
+    }
+
+    private void executeTransaction(final List<WriteTask<?>> tasks) {
+        final Connection connection = statements.getConnection();
+        try {
+            connection.setAutoCommit(false);
+            try {
+                for (final WriteTask<?> task : tasks) {
+                    final Savepoint savepoint = connection.setSavepoint();
+                    try {
+                        task.execute(statements);
+                        connection.releaseSavepoint(savepoint);
+                    } catch (final SQLException | RuntimeException ex) {
+                        connection.rollback(savepoint);
+                        task.fail(ex);
+                    }
+                }
+                connection.commit();
+            } finally {
+                connection.setAutoCommit(true);
+            }
+
+            tasks.forEach(WriteTask::complete);
+
+        } catch (final SQLException ex) {
+            LOG.error("Failed to commit {} write operations", tasks.size(), ex);
+            tasks.forEach(task -> task.fail(ex));
+        }
+    }
+
+    /**
+     * The thread takes all waiting operations from the queue and executes them
+     * in one transaction
+     */
+    private class WriterThread implements Runnable {
+
+        @Override
+        public void run() {
+            final List<WriteTask<?>> tasks = new ArrayList<>(MAX_OPERATIONS_PER_TRANSACTION);
+            while (!Thread.interrupted()) {
+                try {
+                    tasks.add(writeQueue.take());
+                    writeQueue.drainTo(tasks, MAX_OPERATIONS_PER_TRANSACTION - 1);
+
+                    executeTransaction(tasks);
+                } catch (final InterruptedException ex) {
+                    LOG.error("Interrupted", ex);
+                    Thread.currentThread().interrupt();
+                } finally {
+                    tasks.clear();
+                }
+            }
+
+            writeQueue.drainTo(tasks);
+            tasks.forEach(task -> task.fail(new DSyncClientException("Database writer is stopped")));
+        }
+    }
+
+    /**
+     * Write operation with its result. The future is completed only after
+     * commit.
+     */
+    private static class WriteTask<R> {
+        private final SqlOperation<R> operation;
+        private final CompletableFuture<R> future = new CompletableFuture<>();
+
+        private R result;
+
+        WriteTask(final SqlOperation<R> operation) {
+            this.operation = operation;
+        }
+
+        void execute(final StatementCache statements) throws SQLException {
+            result = operation.execute(statements);
+        }
+
+        void complete() {
+            future.complete(result);
+        }
+
+        void fail(final Exception ex) {
+            future.completeExceptionally(ex);
+        }
+    }
+
+}
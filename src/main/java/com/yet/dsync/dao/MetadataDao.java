@@ -14,11 +14,10 @@
 
 package com.yet.dsync.dao;
 
+import com.yet.dsync.dto.DropboxChangeType;
 import com.yet.dsync.dto.DropboxFileData;
-import com.yet.dsync.exception.DSyncClientException;
 
 import java.math.BigDecimal;
-import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -26,11 +25,15 @@ import java.sql.Types;
 import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Set;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.CompletableFuture;
 
 public class MetadataDao {
 
@@ -45,27 +48,68 @@ public class MetadataDao {
             + "CLIDATE  INTEGER"
             + ")";
 
-    private static final String SELECT_BY_ID_STATEMENT = "SELECT * FROM METADATA WHERE ID = ?";
+    /*
+     * Keeps one row for each lower path, so unique index can be created. The row with the latest server
+     * date is kept, as it describes the current Dropbox state, then the loaded one, then the latest written.
+     */
+    static final String DELETE_DUPLICATE_PLOWER_STATEMENT = "DELETE FROM METADATA WHERE ROWID IN ("
+            + "SELECT RID FROM (SELECT ROWID AS RID, ROW_NUMBER() OVER ("
+            + "PARTITION BY PLOWER ORDER BY SRVDATE DESC, LOADED DESC, ROWID DESC) AS RN FROM METADATA)"
+            + " WHERE RN > 1)";
+
+    static final String CREATE_PLOWER_INDEX_STATEMENT =
+            "CREATE UNIQUE INDEX IF NOT EXISTS METADATA_PLOWER_IDX ON METADATA (PLOWER)";
+
+    static final String CREATE_NOT_LOADED_INDEX_STATEMENT =
+            "CREATE INDEX IF NOT EXISTS METADATA_NOT_LOADED_IDX ON METADATA (LOADED) WHERE LOADED = 0";
+
+    static final String ADD_HASH_COLUMN_STATEMENT = "ALTER TABLE METADATA ADD COLUMN HASH TEXT";
 
     private static final String SELECT_NOT_LOADED_STATEMENT = "SELECT * FROM METADATA WHERE LOADED = 0";
 
     private static final String SELECT_BY_PLOWER_STATEMENT = "SELECT * FROM METADATA WHERE PLOWER = ?";
 
-    private static final String INSERT_STATEMENT = "INSERT INTO METADATA ("
-            + "ID,PATH,PLOWER,LOADED,REV,SIZE,SRVDATE,CLIDATE) VALUES (?,?,?,?,?,?,?,?)";
+    /* Range of lower paths under the folder, which is served by the lower path index */
+    private static final String SELECT_LOADED_TREE_STATEMENT =
+            "SELECT * FROM METADATA WHERE PLOWER > ? AND PLOWER < ? AND LOADED = 1";
+
+    private static final String INSERT_OR_REPLACE_STATEMENT = "INSERT OR REPLACE INTO METADATA ("
+            + "ID,PATH,PLOWER,LOADED,REV,SIZE,SRVDATE,CLIDATE,HASH) VALUES (?,?,?,?,?,?,?,?,?)";
+
+    /* Loaded flag is kept only if the revision didn't change */
+    private static final String UPSERT_STATEMENT = "INSERT INTO METADATA ("
+            + "ID,PATH,PLOWER,LOADED,REV,SIZE,SRVDATE,CLIDATE,HASH) VALUES (?,?,?,?,?,?,?,?,?)"
+            + " ON CONFLICT(ID) DO UPDATE SET"
+            + " PATH = excluded.PATH,"
+            + " PLOWER = excluded.PLOWER,"
+            + " LOADED = CASE WHEN REV IS excluded.REV THEN LOADED ELSE 0 END,"
+            + " REV = excluded.REV,"
+            + " SIZE = excluded.SIZE,"
+            + " SRVDATE = excluded.SRVDATE,"
+            + " CLIDATE = excluded.CLIDATE,"
+            + " HASH = excluded.HASH";
 
     private static final String UPDATE_LOADED_STATEMENT = "UPDATE METADATA SET LOADED = ? WHERE ID = ?";
 
-    private static final String UPDATE_FIELDS_STATEMENT = "UPDATE METADATA SET PATH = ?,"
-                                                                + "PLOWER = ?,"
-                                                                + "REV = ?,"
-                                                                + "SIZE = ?,"
-                                                                + "SRVDATE = ?,"
-                                                                + "CLIDATE = ?"
-                                                                + " WHERE ID = ?";
-
     private static final String DELETE_BY_PATH_STATEMENT = "DELETE FROM METADATA WHERE PLOWER = ?";
 
+    /* Lower path of the row that lost its path while changes are applied. Real lower paths start with '/' */
+    private static final String PARKED_PREFIX = ":parked:";
+
+    private static final String PARK_BY_PATH_OTHER_ID_STATEMENT =
+            "UPDATE METADATA SET PLOWER = '" + PARKED_PREFIX + "' || ID WHERE PLOWER = ? AND ID <> ?";
+
+    /* ';' is the next character after ':', so the range holds all parked rows */
+    private static final String DELETE_PARKED_STATEMENT = "DELETE FROM METADATA"
+            + " WHERE PLOWER >= '" + PARKED_PREFIX + "' AND PLOWER < ':parked;'";
+
+    /* Path itself and everything under it. '0' is the next character after '/' */
+    private static final String DELETE_TREE_STATEMENT = "DELETE FROM METADATA WHERE PLOWER = ?"
+            + " OR (PLOWER > ? AND PLOWER < ?)";
+
+    /* Number of rows in one transaction of the batch write and in one JDBC batch of the upsert */
+    private static final int BATCH_SIZE = 500;
+
     private static final int COL_ID = 1;
     private static final int COL_PATH = COL_ID + 1;
     private static final int COL_PATH_LOWER = COL_PATH + 1;
@@ -74,42 +118,19 @@ public class MetadataDao {
     private static final int COL_SIZE = COL_REV + 1;
     private static final int COL_SRVDATE = COL_SIZE + 1;
     private static final int COL_CLIDATE = COL_SRVDATE + 1;
+    private static final int COL_HASH = COL_CLIDATE + 1;
 
-    private static final int UPD_PARAM_PATH = 1;
-    private static final int UPD_PARAM_PATH_LOWER = UPD_PARAM_PATH + 1;
-    private static final int UPD_PARAM_REV = UPD_PARAM_PATH_LOWER + 1;
-    private static final int UPD_PARAM_SIZE = UPD_PARAM_REV + 1;
-    private static final int UPD_PARAM_SRVDATE = UPD_PARAM_SIZE + 1;
-    private static final int UPD_PARAM_CLIDATE = UPD_PARAM_SRVDATE + 1;
-    private static final int UPD_PARAM_ID = UPD_PARAM_CLIDATE + 1;
-
-    private final PreparedStatement readByIdStatement;
-    private final PreparedStatement readNotLoadedStatement;
-    private final PreparedStatement readByPLowerStatement;
-    private final PreparedStatement insertStatement;
-    private final PreparedStatement updateLoadedStatement;
-    private final PreparedStatement updateFieldsStatement;
-    private final PreparedStatement deleteByPathStatement;
-
-    private final Lock syncLock = new ReentrantLock(true);
-
-    public MetadataDao(final Connection connection) {
-        try {
-            readByIdStatement = connection.prepareStatement(SELECT_BY_ID_STATEMENT);
-            readNotLoadedStatement = connection.prepareStatement(SELECT_NOT_LOADED_STATEMENT);
-            readByPLowerStatement = connection.prepareStatement(SELECT_BY_PLOWER_STATEMENT);
-            insertStatement = connection.prepareStatement(INSERT_STATEMENT);
-            updateLoadedStatement = connection.prepareStatement(UPDATE_LOADED_STATEMENT);
-            updateFieldsStatement = connection.prepareStatement(UPDATE_FIELDS_STATEMENT);
-            deleteByPathStatement = connection.prepareStatement(DELETE_BY_PATH_STATEMENT);
-        } catch (final SQLException ex) {
-            throw new DSyncClientException(ex);
-        }
+    private final DatabaseWriter databaseWriter;
+    private final ReadConnectionPool readConnectionPool;
+
+    public MetadataDao(final DatabaseWriter databaseWriter, final ReadConnectionPool readConnectionPool) {
+        this.databaseWriter = databaseWriter;
+        this.readConnectionPool = readConnectionPool;
     }
 
     public DropboxFileData readByLowerPath(final String lowerPath) {
-        syncLock.lock();
-        try {
+        return readConnectionPool.read(statements -> {
+            final PreparedStatement readByPLowerStatement = statements.prepare(SELECT_BY_PLOWER_STATEMENT);
             readByPLowerStatement.setString(COL_ID, lowerPath);
 
             try (ResultSet resultSet = readByPLowerStatement.executeQuery()) {
@@ -119,11 +140,7 @@ public class MetadataDao {
                     return null;
                 }
             }
-        } catch (final SQLException ex) {
-            throw new DSyncClientException(ex);
-        } finally {
-            syncLock.unlock();
-        }
+        });
     }
 
     private DropboxFileData buildFileData(final ResultSet resultSet) throws SQLException {
@@ -136,120 +153,248 @@ public class MetadataDao {
             .rev(resultSet.getString(COL_REV))
             .size(size == null ? null : size.longValue())
             .serverModified(longToDateTime(resultSet.getBigDecimal(COL_SRVDATE)))
-            .clientModified(longToDateTime(resultSet.getBigDecimal(COL_SRVDATE)));
+            .clientModified(longToDateTime(resultSet.getBigDecimal(COL_CLIDATE)))
+            .contentHash(resultSet.getString(COL_HASH));
         return builder.build();
     }
 
+    /**
+     * Inserts or updates the file data, see {@link #upsert(Set)}.
+     *
+     * @param fileData
+     *            file data to write
+     */
     public void write(final DropboxFileData fileData) {
-        syncLock.lock();
-        try {
-            readByIdStatement.setString(COL_ID, fileData.getId());
+        databaseWriter.execute(statements -> {
+            applyChanges(statements, Collections.singletonList(fileData));
+            return null;
+        });
+    }
 
-            try (ResultSet resultSet = readByIdStatement.executeQuery()) {
-                if (resultSet.next()) {
-                    updateFieldsStatement.setString(UPD_PARAM_PATH, fileData.getPathDisplay());
-                    updateFieldsStatement.setString(UPD_PARAM_PATH_LOWER, fileData.getPathLower());
-                    setStatementParams(updateFieldsStatement, UPD_PARAM_REV,
-                            fileData.getRev(), Types.VARCHAR);
-                    setStatementParams(updateFieldsStatement, UPD_PARAM_SIZE,
-                            fileData.getSize(), Types.BIGINT);
-                    setStatementParams(updateFieldsStatement, UPD_PARAM_SRVDATE,
-                            dateTimeToLong(fileData.getServerModified()), Types.BIGINT);
-                    setStatementParams(updateFieldsStatement, UPD_PARAM_CLIDATE,
-                            dateTimeToLong(fileData.getClientModified()), Types.BIGINT);
-
-                    updateFieldsStatement.setString(UPD_PARAM_ID, fileData.getId());
+    private void fillInsertStatement(final PreparedStatement statement,
+                                     final DropboxFileData fileData) throws SQLException {
+        statement.setString(COL_ID, fileData.getId());
+        statement.setString(COL_PATH, fileData.getPathDisplay());
+        statement.setString(COL_PATH_LOWER, fileData.getPathLower());
+        statement.setBoolean(COL_LOADED, false);
+        setStatementParams(statement, COL_REV, fileData.getRev(), Types.VARCHAR);
+        setStatementParams(statement, COL_SIZE, fileData.getSize(), Types.BIGINT);
+        setStatementParams(statement, COL_SRVDATE,
+                dateTimeToLong(fileData.getServerModified()), Types.BIGINT);
+        setStatementParams(statement, COL_CLIDATE,
+                dateTimeToLong(fileData.getClientModified()), Types.BIGINT);
+        setStatementParams(statement, COL_HASH, fileData.getContentHash(), Types.VARCHAR);
+    }
 
-                } else {
-                    fillInsertStatement(fileData);
+    /**
+     * Writes the set of file data in batches. Each batch of {@link #BATCH_SIZE}
+     * rows is a separate operation of the {@link DatabaseWriter}, so a large
+     * set doesn't hold one huge transaction. Existing rows with the same id
+     * or the same lower path are replaced, therefore writing the same set
+     * again (e.g. when initial sync is resumed from the saved cursor) is safe.
+     *
+     * @param fileDataSet
+     *            file data to write
+     */
+    public void write(final Set<DropboxFileData> fileDataSet) {
+        final List<CompletableFuture<Void>> batches = new LinkedList<>();
 
-                    insertStatement.executeUpdate();
-                }
+        final Iterator<DropboxFileData> iterator = fileDataSet.iterator();
+        while (iterator.hasNext()) {
+            final List<DropboxFileData> batch = new ArrayList<>(BATCH_SIZE);
+            while (iterator.hasNext() && batch.size() < BATCH_SIZE) {
+                batch.add(iterator.next());
             }
-        } catch (final SQLException ex) {
-            throw new DSyncClientException(ex);
-        } finally {
-            syncLock.unlock();
+            batches.add(databaseWriter.submit(statements -> {
+                final PreparedStatement insertOrReplaceStatement = statements.prepare(INSERT_OR_REPLACE_STATEMENT);
+                for (final DropboxFileData fileData : batch) {
+                    fillInsertStatement(insertOrReplaceStatement, fileData);
+                    insertOrReplaceStatement.addBatch();
+                }
+                insertOrReplaceStatement.executeBatch();
+                return null;
+            }));
         }
+
+        batches.forEach(DatabaseWriter::await);
     }
 
-    private void fillInsertStatement(final DropboxFileData fileData) throws SQLException {
-        insertStatement.setString(COL_ID, fileData.getId());
-        insertStatement.setString(COL_PATH, fileData.getPathDisplay());
-        insertStatement.setString(COL_PATH_LOWER, fileData.getPathLower());
-        insertStatement.setBoolean(COL_LOADED, false);
-        setStatementParams(insertStatement, COL_REV, fileData.getRev(), Types.VARCHAR);
-        setStatementParams(insertStatement, COL_SIZE, fileData.getSize(), Types.BIGINT);
-        setStatementParams(insertStatement, COL_SRVDATE,
-                dateTimeToLong(fileData.getServerModified()), Types.BIGINT);
-        setStatementParams(insertStatement, COL_CLIDATE,
-                dateTimeToLong(fileData.getClientModified()), Types.BIGINT);
+    /**
+     * Applies the set of changes from Dropbox in one transaction. Deleted
+     * entries are removed together with everything under them. Other entries
+     * are inserted, or updated by id if they are already known. The loaded
+     * flag of the updated entry is reset only when its revision changed.
+     * Rows of other ids that hold the same path are moved aside and removed
+     * at the end, unless a later change gives them a new path. So entries
+     * that swap their paths keep their rows and loaded flags.
+     *
+     * <p>Consecutive changes of the same kind are sent in JDBC batches. The
+     * batch is flushed when the kind changes or the same path comes again, so
+     * the changes are applied in the order of the set.
+     *
+     * @param fileDataSet
+     *            changes to apply
+     */
+    public void upsert(final Set<DropboxFileData> fileDataSet) {
+        if (fileDataSet.isEmpty()) {
+            return;
+        }
+        databaseWriter.execute(statements -> {
+            applyChanges(statements, fileDataSet);
+            return null;
+        });
     }
 
-    public void write(final Set<DropboxFileData> fileDataSet) {
-        syncLock.lock();
-        try {
-            fileDataSet.forEach(fileData -> {
-
-                try {
-                    fillInsertStatement(fileData);
-                    insertStatement.addBatch();
-                } catch (final SQLException ex) {
-                    throw new DSyncClientException(ex);
-                }
+    private void applyChanges(final StatementCache statements,
+                              final Collection<DropboxFileData> changes) throws SQLException {
+        final PreparedStatement deleteTreeStatement = statements.prepare(DELETE_TREE_STATEMENT);
+        final PreparedStatement parkOtherIdStatement = statements.prepare(PARK_BY_PATH_OTHER_ID_STATEMENT);
+        final PreparedStatement upsertStatement = statements.prepare(UPSERT_STATEMENT);
+
+        final Set<String> batchedPaths = new HashSet<>();
+        boolean deleting = false;
+
+        for (final DropboxFileData fileData : changes) {
+            final boolean delete = DropboxChangeType.DELETE == fileData.getChangeType();
+            final String pathLower = fileData.getPathLower();
+
+            if (delete != deleting || batchedPaths.contains(pathLower) || batchedPaths.size() >= BATCH_SIZE) {
+                executeBatches(deleting, deleteTreeStatement, parkOtherIdStatement, upsertStatement);
+                batchedPaths.clear();
+                deleting = delete;
+            }
+            batchedPaths.add(pathLower);
+
+            if (delete) {
+                deleteTreeStatement.setString(1, pathLower);
+                deleteTreeStatement.setString(2, pathLower + "/");
+                deleteTreeStatement.setString(3, pathLower + "0");
+                deleteTreeStatement.addBatch();
+            } else {
+                parkOtherIdStatement.setString(1, pathLower);
+                parkOtherIdStatement.setString(2, fileData.getId());
+                parkOtherIdStatement.addBatch();
+
+                fillInsertStatement(upsertStatement, fileData);
+                upsertStatement.addBatch();
+            }
+        }
 
-            });
+        executeBatches(deleting, deleteTreeStatement, parkOtherIdStatement, upsertStatement);
 
-            insertStatement.executeBatch();
+        statements.prepare(DELETE_PARKED_STATEMENT).executeUpdate();
+    }
 
-        } catch (final SQLException ex) {
-            throw new DSyncClientException(ex);
-        } finally {
-            syncLock.unlock();
+    private void executeBatches(final boolean deleting,
+                                final PreparedStatement deleteTreeStatement,
+                                final PreparedStatement parkOtherIdStatement,
+                                final PreparedStatement upsertStatement) throws SQLException {
+        if (deleting) {
+            deleteTreeStatement.executeBatch();
+        } else {
+            parkOtherIdStatement.executeBatch();
+            upsertStatement.executeBatch();
         }
     }
 
     public Collection<DropboxFileData> readAllNotLoaded() {
-        try (ResultSet resultSet = readNotLoadedStatement.executeQuery()) {
+        return readConnectionPool.read(statements -> {
+            try (ResultSet resultSet = statements.prepare(SELECT_NOT_LOADED_STATEMENT).executeQuery()) {
 
-            final Collection<DropboxFileData> allFileData = new LinkedList<>();
+                final Collection<DropboxFileData> allFileData = new LinkedList<>();
+
+                while (resultSet.next()) {
+                    final DropboxFileData fileData = buildFileData(resultSet);
+                    allFileData.add(fileData);
+                }
 
-            while (resultSet.next()) {
-                final DropboxFileData fileData = buildFileData(resultSet);
-                allFileData.add(fileData);
+                return allFileData;
             }
+        });
+    }
 
-            return allFileData;
-        } catch (final SQLException ex) {
-            throw new DSyncClientException(ex);
-        }
+    /**
+     * Reads loaded entries that are direct children of the folder.
+     *
+     * @param folderPathLower
+     *            lower path of the folder, empty for the root folder
+     * @return children of the folder
+     */
+    public Collection<DropboxFileData> readLoadedChildren(final String folderPathLower) {
+        final String prefix = folderPathLower + "/";
+        return readConnectionPool.read(statements -> {
+            final PreparedStatement readTreeStatement = statements.prepare(SELECT_LOADED_TREE_STATEMENT);
+            readTreeStatement.setString(1, prefix);
+            readTreeStatement.setString(2, folderPathLower + "0");
+
+            try (ResultSet resultSet = readTreeStatement.executeQuery()) {
+                final Collection<DropboxFileData> children = new LinkedList<>();
+                while (resultSet.next()) {
+                    final DropboxFileData fileData = buildFileData(resultSet);
+                    if (fileData.getPathLower().indexOf('/', prefix.length()) < 0) {
+                        children.add(fileData);
+                    }
+                }
+                return children;
+            }
+        });
     }
 
     public void writeLoadedFlag(final String id, final boolean loaded) {
-        syncLock.lock();
-        try {
+        databaseWriter.execute(statements -> {
+            final PreparedStatement updateLoadedStatement = statements.prepare(UPDATE_LOADED_STATEMENT);
             updateLoadedStatement.setBoolean(1, loaded);
             updateLoadedStatement.setString(2, id);
 
             updateLoadedStatement.executeUpdate();
-        } catch (final SQLException ex) {
-            throw new DSyncClientException(ex);
-        } finally {
-            syncLock.unlock();
-        }
+            return null;
+        });
+    }
+
+    /**
+     * Sets the loaded flag of all entries with the given ids in one
+     * transaction.
+     */
+    public void writeLoadedFlag(final Collection<String> ids, final boolean loaded) {
+        databaseWriter.execute(statements -> {
+            final PreparedStatement updateLoadedStatement = statements.prepare(UPDATE_LOADED_STATEMENT);
+            for (final String id : ids) {
+                updateLoadedStatement.setBoolean(1, loaded);
+                updateLoadedStatement.setString(2, id);
+                updateLoadedStatement.addBatch();
+            }
+
+            updateLoadedStatement.executeBatch();
+            return null;
+        });
     }
 
     public void deleteByLowerPath(final String pathLower) {
-        syncLock.lock();
-        try {
+        databaseWriter.execute(statements -> {
+            final PreparedStatement deleteByPathStatement = statements.prepare(DELETE_BY_PATH_STATEMENT);
             deleteByPathStatement.setString(1, pathLower);
 
             deleteByPathStatement.executeUpdate();
-        } catch (final SQLException ex) {
-            throw new DSyncClientException(ex);
-        } finally {
-            syncLock.unlock();
-        }
+            return null;
+        });
+    }
+
+    /**
+     * Deletes the entry together with everything under it.
+     *
+     * @param pathLower
+     *            lower path of the entry
+     */
+    public void deleteTreeByLowerPath(final String pathLower) {
+        databaseWriter.execute(statements -> {
+            final PreparedStatement deleteTreeStatement = statements.prepare(DELETE_TREE_STATEMENT);
+            deleteTreeStatement.setString(1, pathLower);
+            deleteTreeStatement.setString(2, pathLower + "/");
+            deleteTreeStatement.setString(3, pathLower + "0");
+
+            deleteTreeStatement.executeUpdate();
+            return null;
+        });
     }
 
     private void setStatementParams(final PreparedStatement statement,
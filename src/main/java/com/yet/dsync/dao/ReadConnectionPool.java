@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2017 Yuriy Tkach
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.yet.dsync.dao;
+
+import com.yet.dsync.exception.DSyncClientException;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Supplier;
+
+/**
+ * Small pool of read-only connections. With database in WAL mode readers
+ * don't block behind {@link DatabaseWriter}, and different readers don't
+ * block each other until the pool is exhausted.
+ */
+public class ReadConnectionPool {
+
+    private final BlockingQueue<StatementCache> connections;
+
+    public ReadConnectionPool(final int size, final Supplier<Connection> connectionSupplier) {
+        connections = new ArrayBlockingQueue<>(size);
+        for (int i = 0; i < size; i++) {
+            connections.add(new StatementCache(connectionSupplier.get()));
+        }
+    }
+
+    /**
+     * Executes operation on one of the pooled connections. Waits if all
+     * connections are in use.
+     *
+     * @param operation
+     *            read operation
+     * @param <R>
+     *            type of the operation result
+     * @return result of the operation
+     */
+    public <R> R read(final SqlOperation<R> operation) {
+        final StatementCache statements;
+        try {
+            statements = connections.take();
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new DSyncClientException(ex);
+        }
+
+        try {
+            return operation.execute(statements);
+        } catch (final SQLException ex) {
+            throw new DSyncClientException(ex);
+        } finally {
+            connections.add(statements);
+        }
+    }
+
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright (c) 2017 Yuriy Tkach
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.yet.dsync.dao;
+
+import java.sql.SQLException;
+
+/**
+ * Database operation that is executed either by {@link DatabaseWriter} or on
+ * connection from {@link ReadConnectionPool}.
+ *
+ * @param <R>
+ *            type of the operation result
+ */
+@FunctionalInterface
+public interface SqlOperation<R> {
+
+    R execute(StatementCache statements) throws SQLException;
+
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2017 Yuriy Tkach
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+
+package com.yet.dsync.dao;
+
+import com.yet.dsync.dto.UploadSessionData;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.LinkedList;
+
+public class UploadSessionDao {
+
+    static final String CREATE_TABLE_STATEMENT = "CREATE TABLE IF NOT EXISTS UPLOAD_SESSION ("
+            + "LOCAL_PATH   TEXT PRIMARY KEY  NOT NULL,"
+            + "SESSION_ID   TEXT              NOT NULL,"
+            + "SIZE         INTEGER           NOT NULL,"
+            + "MTIME        INTEGER           NOT NULL,"
+            + "COMMITTED    INTEGER           NOT NULL"
+            + ")";
+
+    private static final String SELECT_BY_PATH_STATEMENT = "SELECT * FROM UPLOAD_SESSION WHERE LOCAL_PATH = ?";
+
+    private static final String SELECT_ALL_STATEMENT = "SELECT * FROM UPLOAD_SESSION";
+
+    private static final String INSERT_OR_REPLACE_STATEMENT = "INSERT OR REPLACE INTO UPLOAD_SESSION ("
+            + "LOCAL_PATH,SESSION_ID,SIZE,MTIME,COMMITTED) VALUES (?,?,?,?,?)";
+
+    private static final String UPDATE_COMMITTED_STATEMENT = "UPDATE UPLOAD_SESSION SET COMMITTED = ?"
+            + " WHERE LOCAL_PATH = ? AND SESSION_ID = ?";
+
+    private static final String DELETE_BY_PATH_STATEMENT = "DELETE FROM UPLOAD_SESSION WHERE LOCAL_PATH = ?";
+
+    private static final int COL_LOCAL_PATH = 1;
+    private static final int COL_SESSION_ID = COL_LOCAL_PATH + 1;
+    private static final int COL_SIZE = COL_SESSION_ID + 1;
+    private static final int COL_MTIME = COL_SIZE + 1;
+    private static final int COL_COMMITTED = COL_MTIME + 1;
+
+    private final DatabaseWriter databaseWriter;
+    private final ReadConnectionPool readConnectionPool;
+
+    public UploadSessionDao(final DatabaseWriter databaseWriter, final ReadConnectionPool readConnectionPool) {
+        this.databaseWriter = databaseWriter;
+        this.readConnectionPool = readConnectionPool;
+    }
+
+    public UploadSessionData read(final String localPath) {
+        return readConnectionPool.read(statements -> {
+            final PreparedStatement readStatement = statements.prepare(SELECT_BY_PATH_STATEMENT);
+            readStatement.setString(1, localPath);
+
+            try (ResultSet resultSet = readStatement.executeQuery()) {
+                if (resultSet.next()) {
+                    return buildSessionData(resultSet);
+                } else {
+                    return null;
+                }
+            }
+        });
+    }
+
+    public Collection<UploadSessionData> readAll() {
+        return readConnectionPool.read(statements -> {
+            try (ResultSet resultSet = statements.prepare(SELECT_ALL_STATEMENT).executeQuery()) {
+                final Collection<UploadSessionData> sessions = new LinkedList<>();
+                while (resultSet.next()) {
+                    sessions.add(buildSessionData(resultSet));
+                }
+                return sessions;
+            }
+        });
+    }
+
+    private UploadSessionData buildSessionData(final ResultSet resultSet) throws SQLException {
+        return new UploadSessionData(
+                resultSet.getString(COL_LOCAL_PATH),
+                resultSet.getString(COL_SESSION_ID),
+                resultSet.getLong(COL_SIZE),
+                resultSet.getLong(COL_MTIME),
+                resultSet.getLong(COL_COMMITTED));
+    }
+
+    public void write(final UploadSessionData sessionData) {
+        databaseWriter.execute(statements -> {
+            final PreparedStatement insertStatement = statements.prepare(INSERT_OR_REPLACE_STATEMENT);
+            insertStatement.setString(COL_LOCAL_PATH, sessionData.getLocalPath());
+            insertStatement.setString(COL_SESSION_ID, sessionData.getSessionId());
+            insertStatement.setLong(COL_SIZE, sessionData.getSize());
+            insertStatement.setLong(COL_MTIME, sessionData.getLastModified());
+            insertStatement.setLong(COL_COMMITTED, sessionData.getOffset());
+
+            insertStatement.executeUpdate();
+            return null;
+        });
+    }
+
+    public void writeCommittedOffset(final String localPath, final String sessionId, final long offset) {
+        databaseWriter.execute(statements -> {
+            final PreparedStatement updateStatement = statements.prepare(UPDATE_COMMITTED_STATEMENT);
+            updateStatement.setLong(1, offset);
+            updateStatement.setString(2, localPath);
+            updateStatement.setString(3, sessionId);
+
+            updateStatement.executeUpdate();
+            return null;
+        });
+    }
+
+    public void delete(final String localPath) {
+        databaseWriter.execute(statements -> {
+            final PreparedStatement deleteStatement = statements.prepare(DELETE_BY_PATH_STATEMENT);
+            deleteStatement.setString(1, localPath);
+
+            deleteStatement.executeUpdate();
+            return null;
+        });
+    }
+
+}
@@ -34,6 +34,8 @@ public final class DropboxFileData {
 
     private final LocalDateTime clientModified;
 
+    private final String contentHash;
+
     private DropboxFileData(final Builder builder) {
         this.changeType = builder.changeType;
         this.pathDisplay = builder.pathDisplay;
@@ -43,6 +45,7 @@ public final class DropboxFileData {
         this.size = builder.size;
         this.serverModified = builder.serverModified;
         this.clientModified = builder.clientModified;
+        this.contentHash = builder.contentHash;
     }
 
     public boolean isFile() {
@@ -85,6 +88,10 @@ public final class DropboxFileData {
         return clientModified;
     }
 
+    public String getContentHash() {
+        return contentHash;
+    }
+
     @Override
     public String toString() {
         String str = this.getClass().getSimpleName() + " [" + changeType + " " + pathDisplay;
@@ -117,6 +124,8 @@ public final class DropboxFileData {
 
         private LocalDateTime clientModified;
 
+        private String contentHash;
+
         public Builder changeType(final DropboxChangeType changeType) {
             this.changeType = changeType;
             return this;
@@ -157,6 +166,11 @@ public final class DropboxFileData {
             return this;
         }
 
+        public Builder contentHash(final String contentHash) {
+            this.contentHash = contentHash;
+            return this;
+        }
+
         public Builder init(final DropboxFileData fileData) {
             this.changeType = fileData.changeType;
             this.clientModified = fileData.clientModified;
@@ -166,6 +180,7 @@ public final class DropboxFileData {
             this.rev = fileData.rev;
             this.serverModified = fileData.serverModified;
             this.size = fileData.size;
+            this.contentHash = fileData.contentHash;
             return this;
         }
 
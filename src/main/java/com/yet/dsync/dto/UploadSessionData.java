@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2017 Yuriy Tkach
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+
+package com.yet.dsync.dto;
+
+/**
+ * State of the upload session of a large local file. Offset is the number of
+ * bytes already accepted by Dropbox. Size and last modified time identify the
+ * version of the file that is being uploaded.
+ */
+public class UploadSessionData {
+
+    private final String localPath;
+
+    private final String sessionId;
+
+    private final long size;
+
+    private final long lastModified;
+
+    private final long offset;
+
+    public UploadSessionData(final String localPath, final String sessionId,
+                             final long size, final long lastModified, final long offset) {
+        this.localPath = localPath;
+        this.sessionId = sessionId;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.offset = offset;
+    }
+
+    public String getLocalPath() {
+        return localPath;
+    }
+
+    public String getSessionId() {
+        return sessionId;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public boolean isSameFile(final long fileSize, final long fileLastModified) {
+        return size == fileSize && lastModified == fileLastModified;
+    }
+
+    @Override
+    public String toString() {
+        return UploadSessionData.class.getSimpleName()
+                + " [localPath=" + localPath
+                + ", sessionId=" + sessionId
+                + ", offset=" + offset
+                + " of " + size
+                + "]";
+    }
+
+}
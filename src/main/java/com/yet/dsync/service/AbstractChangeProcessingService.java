@@ -16,28 +16,82 @@ package com.yet.dsync.service;
 
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.yet.dsync.exception.DSyncClientException;
+import com.yet.dsync.util.VirtualThreads;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.util.Comparator;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadFactory;
-
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Processes changes on two lanes: folders and small files on the quick one,
+ * large files on the slow one. Number of workers of each lane is tuned from
+ * its observed throughput, see {@link ProcessingLane}. Worker that finds its
+ * lane empty takes a change from the other lane, so idle workers help the
+ * busy lane.
+ *
+ * <p>Large files are taken only while the bytes in flight fit the budget.
+ * Each file is charged at most a quarter of the budget, so a few huge files
+ * leave room for other large ones instead of holding all the slow workers.
+ *
+ * <p>Changes of the same path, and of a folder and entries under it, are
+ * processed in the order they were scheduled, see {@link PathSequencer}.
+ * Change that waits for earlier ones is queued when they are completed.
+ * Change can be completed after the worker is released, see
+ * {@link #startProcessing(Object)}.
+ *
+ * <p>In {@link ExecutionMode#VIRTUAL} mode each lane has one dispatching
+ * thread, which starts a virtual thread per change. Changes in flight are
+ * limited by the semaphore of the lane instead of the worker count, so the
+ * lanes are neither tuned nor help each other. Quick lane limit is given by
+ * the caller. Slow lane limit follows the byte budget: it is the number of
+ * the smallest large files that fit into the budget together.
+ */
 public abstract class AbstractChangeProcessingService<T> {
 
     private static final Logger LOG = LogManager
             .getLogger(AbstractChangeProcessingService.class);
 
-    private static final int QUICK_THREAD_NUMBER = 5;
-    private static final int SLOW_THREAD_NUMBER = 2;
+    private static final int QUICK_MIN_THREADS = 2;
+    private static final int QUICK_INITIAL_THREADS = 5;
+    private static final int QUICK_MAX_THREADS = 16;
+
+    private static final int SLOW_MIN_THREADS = 1;
+    private static final int SLOW_INITIAL_THREADS = 2;
+    private static final int SLOW_MAX_THREADS = 8;
+
+    private static final long MAX_IN_FLIGHT_BYTES = 1024L * 1024 * 1024; // 1GB
+
+    private static final long MAX_FILE_CHARGE = MAX_IN_FLIGHT_BYTES / 4;
+
+    private static final long TUNING_INTERVAL_SEC = 5;
+
+    /* How long worker waits for its own lane before it looks at the other one */
+    private static final long POLL_TIMEOUT_MILLIS = 100;
+
+    /* How long worker above the lane limit sleeps before it checks the limit again */
+    private static final long DISABLED_WORKER_SLEEP_MILLIS = 500;
 
     private static final long SLOW_THRESHOLD = 256 * 1024; // 256KB
 
-    private static final int PROCESSING_QUEUE_CAPACITY = 100;
+    public static final int DEFAULT_VIRTUAL_CONCURRENCY = 1024;
+
+    private static final int VIRTUAL_SLOW_PERMITS = (int) (MAX_IN_FLIGHT_BYTES / SLOW_THRESHOLD);
+
+    private static final int PROCESSING_QUEUE_CAPACITY = 10_000;
+
+    /* Queue statistics are logged once per this number of scheduled changes */
+    private static final long STATS_LOG_INTERVAL = 10_000;
+
+    private final String name;
 
     private final GlobalOperationsTracker globalOperationsTracker;
 
@@ -57,54 +111,125 @@ public abstract class AbstractChangeProcessingService<T> {
         }
     };
 
-    private final BlockingQueue<T> quickProcessingQueue;
-    private final BlockingQueue<T> slowProcessingQueue;
+    private final ProcessingLane<T> quickLane;
+    private final ProcessingLane<T> slowLane;
 
     private final ExecutorService executorService;
 
+    /* Lanes are tuned only on platform threads, virtual mode has no tuning */
+    private final ScheduledExecutorService tuningExecutor;
+
+    private final AtomicLong scheduled = new AtomicLong();
+
+    private final AtomicLong inFlightBytes = new AtomicLong();
+
+    private final PathSequencer<T> pathSequencer = new PathSequencer<>(PROCESSING_QUEUE_CAPACITY);
+
     public AbstractChangeProcessingService(final String processingThreadName,
                                            final GlobalOperationsTracker globalOperationsTracker) {
+        this(processingThreadName, globalOperationsTracker, ExecutionMode.PLATFORM);
+    }
+
+    public AbstractChangeProcessingService(final String processingThreadName,
+                                           final GlobalOperationsTracker globalOperationsTracker,
+                                           final ExecutionMode executionMode) {
+        this(processingThreadName, globalOperationsTracker, executionMode, DEFAULT_VIRTUAL_CONCURRENCY);
+    }
+
+    /**
+     * @param virtualConcurrency number of quick lane changes in flight in
+     *                           {@link ExecutionMode#VIRTUAL} mode
+     */
+    public AbstractChangeProcessingService(final String processingThreadName,
+                                           final GlobalOperationsTracker globalOperationsTracker,
+                                           final ExecutionMode executionMode,
+                                           final int virtualConcurrency) {
+        if (virtualConcurrency <= 0) {
+            throw new DSyncClientException("Virtual concurrency must be positive: " + virtualConcurrency);
+        }
+        this.name = processingThreadName;
         this.globalOperationsTracker = globalOperationsTracker;
 
-        this.slowProcessingQueue = createProcessingQueue(changeComparator);
-        this.quickProcessingQueue = createProcessingQueue(changeComparator);
+        this.slowLane = new ProcessingLane<>(processingThreadName + " slow", createProcessingQueue(changeComparator),
+                SLOW_MIN_THREADS, SLOW_INITIAL_THREADS, SLOW_MAX_THREADS, true);
+        this.quickLane = new ProcessingLane<>(processingThreadName + " quick", createProcessingQueue(changeComparator),
+                QUICK_MIN_THREADS, QUICK_INITIAL_THREADS, QUICK_MAX_THREADS, false);
 
         final ThreadFactory namedThreadFactory = new ThreadFactoryBuilder()
                 .setNameFormat(processingThreadName + "-%d").build();
 
-        this.executorService = Executors.newFixedThreadPool(
-                SLOW_THREAD_NUMBER + QUICK_THREAD_NUMBER, namedThreadFactory);
+        if (executionMode == ExecutionMode.VIRTUAL && !VirtualThreads.isSupported()) {
+            LOG.warn("Virtual threads require Java 21 or later. Processing {} changes on platform threads", name);
+        }
 
-        initDownloadThreads();
+        if (executionMode == ExecutionMode.VIRTUAL && VirtualThreads.isSupported()) {
+            this.executorService = Executors.newFixedThreadPool(2, namedThreadFactory);
+            this.tuningExecutor = null;
+            initVirtualDispatchers(VirtualThreads.newFactory(processingThreadName + "-v-"), virtualConcurrency);
+        } else {
+            this.executorService = Executors.newFixedThreadPool(
+                    SLOW_MAX_THREADS + QUICK_MAX_THREADS, namedThreadFactory);
+            final ThreadFactory tuningThreadFactory = new ThreadFactoryBuilder()
+                    .setNameFormat(processingThreadName + "-tuning-%d").setDaemon(true).build();
+            this.tuningExecutor = Executors.newSingleThreadScheduledExecutor(tuningThreadFactory);
+            initDownloadThreads();
+            initTuning();
+        }
     }
 
     /**
-     * Creating PriorityBlockingQueue. Note! It is unbounded, so in the future
-     * we might need to enhance it to make it bounded, so the caller will block
-     * before putting next elem them. Also, we can think of different download
-     * threads, some of which will handle only directories and small files,
-     * another will handle only big files. For now, we make priority in the
-     * following way: folders, small files, big files;
+     * Creating bounded priority queue. The caller blocks before putting next
+     * element into the full queue, so Dropbox polling doesn't fetch next page,
+     * and local watching doesn't read next events, until there is room for
+     * them. Priority is the following: folders, small files, big files;
      */
-    private BlockingQueue<T> createProcessingQueue(
+    private ProcessingQueue<T> createProcessingQueue(
             final Comparator<? super T> changeComparator) {
-        return new PriorityBlockingQueue<T>(PROCESSING_QUEUE_CAPACITY, changeComparator);
+        return new ProcessingQueue<T>(PROCESSING_QUEUE_CAPACITY, changeComparator);
     }
 
     @SuppressFBWarnings(value = "RV_RETURN_VALUE_IGNORED_BAD_PRACTICE",
             justification = "Not interested in futures from always running threads")
     private void initDownloadThreads() {
-        for (int i = 0; i < QUICK_THREAD_NUMBER; i++) {
-            executorService.submit(new ProcessingThread(quickProcessingQueue));
+        for (int i = 0; i < QUICK_MAX_THREADS; i++) {
+            executorService.submit(new ProcessingThread(quickLane, slowLane, i));
         }
 
-        for (int i = 0; i < SLOW_THREAD_NUMBER; i++) {
-            executorService.submit(new ProcessingThread(slowProcessingQueue));
+        for (int i = 0; i < SLOW_MAX_THREADS; i++) {
+            executorService.submit(new ProcessingThread(slowLane, quickLane, i));
         }
     }
 
+    @SuppressFBWarnings(value = "RV_RETURN_VALUE_IGNORED_BAD_PRACTICE",
+            justification = "Not interested in futures from always running threads")
+    private void initVirtualDispatchers(final ThreadFactory virtualThreadFactory, final int quickPermits) {
+        executorService.submit(new VirtualDispatcher(quickLane, new Semaphore(quickPermits),
+                virtualThreadFactory));
+        executorService.submit(new VirtualDispatcher(slowLane, new Semaphore(VIRTUAL_SLOW_PERMITS),
+                virtualThreadFactory));
+    }
+
+    private void initTuning() {
+        final long intervalNanos = TimeUnit.SECONDS.toNanos(TUNING_INTERVAL_SEC);
+        tuningExecutor.scheduleAtFixedRate(() -> {
+            quickLane.adjust(intervalNanos);
+            slowLane.adjust(intervalNanos);
+        }, TUNING_INTERVAL_SEC, TUNING_INTERVAL_SEC, TimeUnit.SECONDS);
+    }
+
     protected abstract void processChange(T changeData);
 
+    /**
+     * Starts processing of the change on the worker. Change that is finished
+     * later, e.g. by a batch call, returns the future of its completion, and
+     * changes of related paths wait for it. By default the change is
+     * processed by {@link #processChange(Object)} right away.
+     */
+    protected CompletableFuture<?> startProcessing(final T changeData) {
+        processChange(changeData);
+        return CompletableFuture.completedFuture(null);
+    }
+
     protected abstract boolean isFile(T changeData);
 
     protected abstract boolean isDeleteData(T changeData);
@@ -117,12 +242,43 @@ public abstract class AbstractChangeProcessingService<T> {
         return globalOperationsTracker;
     }
 
+    /**
+     * @return number of changes waiting in the processing queues
+     */
+    public int getQueuedChanges() {
+        return quickLane.getQueue().size() + slowLane.getQueue().size();
+    }
+
+    /**
+     * @return total time in milliseconds producers waited for room in the
+     *         full processing queues
+     */
+    public long getProducerBlockedMillis() {
+        return quickLane.getQueue().getBlockedMillis() + slowLane.getQueue().getBlockedMillis();
+    }
+
+    /**
+     * Stops processing threads. Changes that are still in the queues are not
+     * processed.
+     */
+    public void shutdown() {
+        if (tuningExecutor != null) {
+            tuningExecutor.shutdownNow();
+        }
+        executorService.shutdownNow();
+    }
+
     /**
      * If the changeData is file, then scheduling it either in quick or slow
      * processing queue based on size.
      *
      * Otherwise, scheduling it to quick processing queue.
      *
+     * If earlier change of the same path, its parent or its child is not
+     * completed yet, the change is held until it is.
+     *
+     * Blocks while the queue is full.
+     *
      * @param changeData
      *            Change data object that needs to be scheduled for processing
      */
@@ -132,43 +288,220 @@ public abstract class AbstractChangeProcessingService<T> {
         if (globalOperationsTracker.isTracked(pathLower)) {
             LOG.debug("Path is already tracked. Skip: {}", () -> pathLower);
         } else {
+            boolean sequenced = false;
             try {
-                if (isFile(changeData)) {
-                    final long size = getFileSize(changeData);
-                    if (size > SLOW_THRESHOLD) {
-                        slowProcessingQueue.put(changeData);
-                    } else {
-                        quickProcessingQueue.put(changeData);
-                    }
-                } else {
-                    quickProcessingQueue.put(changeData);
+                if (!pathSequencer.submit(pathLower, changeData, isDeleteData(changeData))) {
+                    LOG.trace("Waiting for earlier changes of related paths: {}", () -> pathLower);
+                    logStats();
+                    return;
+                }
+                sequenced = true;
+                final long waited = queueOf(changeData).put(changeData);
+                if (waited > 0) {
+                    LOG.debug("{} queue was full. Waited {} ms to schedule {}", name, waited, pathLower);
+                }
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                if (sequenced) {
+                    // Change is dropped, so changes of related paths must not wait for it
+                    completeInSequence(changeData);
                 }
-            } catch (final Exception ex) {
                 throw new DSyncClientException(ex);
             }
+            logStats();
+        }
+    }
+
+    private ProcessingQueue<T> queueOf(final T changeData) {
+        return isFile(changeData) && getFileSize(changeData) > SLOW_THRESHOLD
+                ? slowLane.getQueue() : quickLane.getQueue();
+    }
+
+    private void logStats() {
+        if (scheduled.incrementAndGet() % STATS_LOG_INTERVAL == 0) {
+            final ProcessingQueue<T> quickQueue = quickLane.getQueue();
+            final ProcessingQueue<T> slowQueue = slowLane.getQueue();
+            LOG.debug("{} queues: quick {} of {} ({} workers), slow {} of {} ({} workers), {} bytes in flight, "
+                    + "{} waiting for related paths, producers waited {} times for {} ms",
+                name, quickQueue.size(), quickQueue.getCapacity(), quickLane.getWorkerLimit(),
+                slowQueue.size(), slowQueue.getCapacity(), slowLane.getWorkerLimit(), inFlightBytes.get(),
+                pathSequencer.getWaiting(), quickQueue.getBlockedPuts() + slowQueue.getBlockedPuts(),
+                getProducerBlockedMillis());
+        }
+    }
+
+    /**
+     * Bytes that processing of the change takes from the budget. Only large
+     * files are charged.
+     */
+    private long chargeOf(final T changeData) {
+        if (!isFile(changeData)) {
+            return 0;
+        }
+        final long size = getFileSize(changeData);
+        return size > SLOW_THRESHOLD ? Math.min(size, MAX_FILE_CHARGE) : 0;
+    }
+
+    /**
+     * Reserves the bytes, if they fit the budget. Nothing in flight always
+     * fits, so a file larger than the budget is processed alone.
+     */
+    private boolean reserveBytes(final long bytes) {
+        while (true) {
+            final long current = inFlightBytes.get();
+            if (bytes > 0 && current > 0 && current + bytes > MAX_IN_FLIGHT_BYTES) {
+                return false;
+            }
+            if (inFlightBytes.compareAndSet(current, current + bytes)) {
+                return true;
+            }
+        }
+    }
+
+    private void process(final ProcessingLane<T> sourceLane, final T changeData, final long reservedBytes) {
+        final long start = System.nanoTime();
+        CompletableFuture<?> completion = CompletableFuture.completedFuture(null);
+        try {
+            completion = startProcessing(changeData);
+        } catch (final Exception ex) {
+            LOG.error("Failed to process changeData", ex);
+        } finally {
+            completion.whenComplete((result, error) -> {
+                if (error != null) {
+                    LOG.error("Failed to process changeData", error);
+                }
+                inFlightBytes.addAndGet(-reservedBytes);
+                sourceLane.recordCompleted(isFile(changeData) ? getFileSize(changeData) : 0,
+                        System.nanoTime() - start);
+                completeInSequence(changeData);
+            });
         }
     }
 
     /**
-     * Processing thread that will take change data from the queue and call the
-     * {@link #processChange(Object)} method
+     * Queues changes that waited for the completed one. They were admitted
+     * by the sequencer already, so they don't wait for room, and processing
+     * thread never blocks on its own queue.
      */
-    private class ProcessingThread implements Runnable {
+    private void completeInSequence(final T changeData) {
+        try {
+            for (final T ready : pathSequencer.complete(extractPathLower(changeData))) {
+                queueOf(ready).add(ready);
+            }
+        } catch (final RuntimeException ex) {
+            LOG.error("Failed to queue changes that waited for " + changeData, ex);
+        }
+    }
+
+    /**
+     * Takes changes from the lanes within the byte budget
+     */
+    private abstract class LaneWorker implements Runnable {
 
-        private final BlockingQueue<T> queue;
+        /* Bytes reserved by the admission of the taken change */
+        private long reservedBytes;
 
-        ProcessingThread(final BlockingQueue<T> queue) {
-            this.queue = queue;
+        protected boolean admit(final T changeData) {
+            final long charge = chargeOf(changeData);
+            if (reserveBytes(charge)) {
+                reservedBytes = charge;
+                return true;
+            }
+            return false;
+        }
+
+        protected long takeReservedBytes() {
+            final long bytes = reservedBytes;
+            reservedBytes = 0;
+            return bytes;
+        }
+    }
+
+    /**
+     * Processing thread that will take change data from the queue of its lane,
+     * or from the other lane when its own is empty, and call the
+     * {@link #processChange(Object)} method. Thread that is above the worker
+     * limit of its lane waits until the limit grows.
+     */
+    private class ProcessingThread extends LaneWorker {
+
+        private final ProcessingLane<T> lane;
+        private final ProcessingLane<T> otherLane;
+        private final int workerIndex;
+
+        ProcessingThread(final ProcessingLane<T> lane, final ProcessingLane<T> otherLane, final int workerIndex) {
+            this.lane = lane;
+            this.otherLane = otherLane;
+            this.workerIndex = workerIndex;
         }
 
         @Override
         public void run() {
             while (!Thread.interrupted()) {
                 try {
-                    final T changeData = queue.take();
-                    processChange(changeData);
-                } catch (final Exception ex) {
-                    LOG.error("Failed to process changeData", ex);
+                    if (!lane.isWorkerEnabled(workerIndex)) {
+                        TimeUnit.MILLISECONDS.sleep(DISABLED_WORKER_SLEEP_MILLIS);
+                        continue;
+                    }
+
+                    ProcessingLane<T> sourceLane = lane;
+                    T changeData = lane.getQueue().poll(this::admit, POLL_TIMEOUT_MILLIS);
+                    if (changeData == null) {
+                        sourceLane = otherLane;
+                        changeData = otherLane.getQueue().poll(this::admit, 0);
+                    }
+                    if (changeData != null) {
+                        process(sourceLane, changeData, takeReservedBytes());
+                    }
+                } catch (final InterruptedException ex) {
+                    LOG.debug("Processing thread interrupted");
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Dispatching thread of the lane in virtual mode. Takes a permit of the
+     * lane, then the change, and processes the change on a new virtual thread,
+     * which returns the permit when done.
+     */
+    private class VirtualDispatcher extends LaneWorker {
+
+        private final ProcessingLane<T> lane;
+        private final Semaphore permits;
+        private final ThreadFactory virtualThreadFactory;
+
+        VirtualDispatcher(final ProcessingLane<T> lane, final Semaphore permits,
+                          final ThreadFactory virtualThreadFactory) {
+            this.lane = lane;
+            this.permits = permits;
+            this.virtualThreadFactory = virtualThreadFactory;
+        }
+
+        @Override
+        public void run() {
+            while (!Thread.interrupted()) {
+                try {
+                    permits.acquire();
+                    final T changeData = lane.getQueue().poll(this::admit, POLL_TIMEOUT_MILLIS);
+                    if (changeData == null) {
+                        permits.release();
+                        continue;
+                    }
+
+                    final long reservedBytes = takeReservedBytes();
+                    virtualThreadFactory.newThread(() -> {
+                        try {
+                            process(lane, changeData, reservedBytes);
+                        } finally {
+                            permits.release();
+                        }
+                    }).start();
+                } catch (final InterruptedException ex) {
+                    LOG.debug("Dispatching thread interrupted");
+                    Thread.currentThread().interrupt();
                 }
             }
         }
@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2017 Yuriy Tkach
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+
+package com.yet.dsync.service;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.io.BaseEncoding;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.yet.dsync.exception.DSyncClientException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Computes Dropbox content hash of local files. The file is split into
+ * blocks of 4 MB, each block is hashed with SHA-256, and the hash of the
+ * concatenated block hashes is the content hash.
+ *
+ * <p>Files are read through memory mappings of several blocks at a time on
+ * the hashing pool, so hashing doesn't copy the file through the heap and
+ * doesn't take threads of the processing services. Hashes are cached by
+ * file key (inode), size and modification time, so the file that didn't
+ * change is not read again.
+ */
+public class ContentHasher {
+
+    private static final Logger LOG = LogManager.getLogger(ContentHasher.class);
+
+    private static final int BLOCK_SIZE = 4 * 1024 * 1024;
+
+    private static final int BLOCKS_PER_MAPPING = 16;
+
+    private static final String HASH_ALGORITHM = "SHA-256";
+
+    private final Cache<FileKey, String> cache;
+
+    private final ExecutorService hashExecutor;
+
+    public ContentHasher(final int threads, final long cacheSize) {
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(cacheSize)
+                .build();
+
+        final ThreadFactory namedThreadFactory = new ThreadFactoryBuilder()
+                .setNameFormat("content-hash-%d").setDaemon(true).build();
+        this.hashExecutor = Executors.newFixedThreadPool(threads, namedThreadFactory);
+    }
+
+    /**
+     * Returns content hash of the file as lowercase hex string, the same way
+     * it is reported by Dropbox in file metadata.
+     */
+    public String hash(final Path path) {
+        try {
+            return hashAsync(path).join();
+        } catch (final CompletionException ex) {
+            throw new DSyncClientException("Failed to compute content hash of " + path, ex.getCause());
+        }
+    }
+
+    /**
+     * Computes content hash of the file on the hashing pool. Hashes of many
+     * files are computed in parallel by the pool threads.
+     */
+    public CompletableFuture<String> hashAsync(final Path path) {
+        return CompletableFuture.supplyAsync(() -> hashCached(path), hashExecutor);
+    }
+
+    private String hashCached(final Path path) {
+        try {
+            final FileKey fileKey = readFileKey(path);
+            final String cachedHash = cache.getIfPresent(fileKey);
+            if (cachedHash != null) {
+                LOG.trace("Content hash of {} is cached", () -> path);
+                return cachedHash;
+            }
+
+            final String hash = computeHash(path);
+
+            // File changed while it was read, so the hash doesn't belong to any of its versions
+            if (fileKey.equals(readFileKey(path))) {
+                cache.put(fileKey, hash);
+            }
+            return hash;
+
+        } catch (final IOException ex) {
+            throw new CompletionException(ex);
+        }
+    }
+
+    private static String computeHash(final Path path) {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final MessageDigest contentDigest = MessageDigest.getInstance(HASH_ALGORITHM);
+            final MessageDigest blockDigest = MessageDigest.getInstance(HASH_ALGORITHM);
+
+            final long size = channel.size();
+            final long mappingSize = (long) BLOCK_SIZE * BLOCKS_PER_MAPPING;
+            for (long position = 0; position < size; position += mappingSize) {
+                final MappedByteBuffer mapping = channel.map(FileChannel.MapMode.READ_ONLY,
+                        position, Math.min(mappingSize, size - position));
+
+                while (mapping.hasRemaining()) {
+                    final int blockEnd = Math.min(mapping.position() + BLOCK_SIZE, mapping.limit());
+                    final int mappingLimit = mapping.limit();
+                    mapping.limit(blockEnd);
+                    blockDigest.update(mapping);
+                    mapping.limit(mappingLimit);
+
+                    contentDigest.update(blockDigest.digest());
+                }
+            }
+
+            return BaseEncoding.base16().lowerCase().encode(contentDigest.digest());
+
+        } catch (final IOException | NoSuchAlgorithmException ex) {
+            throw new CompletionException(ex);
+        } catch (final InternalError ex) {
+            // Mapped file was truncated while it was read
+            throw new CompletionException(new IOException("File changed while hashing: " + path, ex));
+        }
+    }
+
+    private static FileKey readFileKey(final Path path) throws IOException {
+        final BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        final Object key = attributes.fileKey() == null ? path.toAbsolutePath() : attributes.fileKey();
+        return new FileKey(key, attributes.size(), attributes.lastModifiedTime().toMillis());
+    }
+
+    /**
+     * Identity of the file content. Key is the inode where the file system
+     * provides it, or the path otherwise.
+     */
+    private static final class FileKey {
+        private final Object key;
+        private final long size;
+        private final long lastModified;
+
+        FileKey(final Object key, final long size, final long lastModified) {
+            this.key = key;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof FileKey)) {
+                return false;
+            }
+            final FileKey other = (FileKey) obj;
+            return size == other.size && lastModified == other.lastModified && key.equals(other.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(key, size, lastModified);
+        }
+    }
+
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2017 Yuriy Tkach
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+
+package com.yet.dsync.service;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.yet.dsync.dao.MetadataDao;
+import com.yet.dsync.dto.DropboxFileData;
+import com.yet.dsync.util.PathUtil;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent.Kind;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Finds changes that were lost when the watch service queue overflowed.
+ * Only the directory of the overflowed watch key is rescanned. Its entries
+ * are compared with the loaded metadata of the directory and with the
+ * snapshot taken by the previous rescan, and the differences are passed on
+ * as synthetic watch events:
+ * <ul>
+ * <li>entry without metadata is created</li>
+ * <li>file of other size than in metadata, or with other modification time
+ * than in the snapshot, is modified</li>
+ * <li>metadata without entry is deleted</li>
+ * </ul>
+ *
+ * <p>Rescans run one by one on a single thread, and each directory is
+ * rescanned at most once per interval, so overflow storm doesn't cause
+ * repeated walks.
+ */
+public class DirectoryRescanner {
+
+    private static final Logger LOG = LogManager.getLogger(DirectoryRescanner.class);
+
+    private static final long RESCAN_INTERVAL_MILLIS = 2000;
+
+    private static final int SNAPSHOT_CACHE_SIZE = 1000;
+
+    private final String localDir;
+    private final MetadataDao metadataDao;
+    private final BiConsumer<Kind<Path>, Path> eventConsumer;
+
+    private final Set<Path> scheduledDirs = ConcurrentHashMap.newKeySet();
+
+    private final Map<Path, Long> lastRescans = new ConcurrentHashMap<>();
+
+    private final Cache<Path, Map<String, EntryState>> snapshots = CacheBuilder.newBuilder()
+            .maximumSize(SNAPSHOT_CACHE_SIZE)
+            .build();
+
+    private final ScheduledExecutorService rescanExecutor;
+
+    public DirectoryRescanner(final String localDir,
+                              final MetadataDao metadataDao,
+                              final BiConsumer<Kind<Path>, Path> eventConsumer) {
+        this.localDir = localDir;
+        this.metadataDao = metadataDao;
+        this.eventConsumer = eventConsumer;
+
+        final ThreadFactory namedThreadFactory = new ThreadFactoryBuilder()
+                .setNameFormat("local-rescan-%d").setDaemon(true).build();
+        this.rescanExecutor = Executors.newSingleThreadScheduledExecutor(namedThreadFactory);
+    }
+
+    /**
+     * Schedules rescan of the directory, unless it is already scheduled. The
+     * rescan is delayed if the directory was rescanned less than the interval
+     * ago.
+     */
+    public void requestRescan(final Path dir) {
+        if (!scheduledDirs.add(dir)) {
+            LOG.trace("Rescan is already scheduled for {}", () -> dir);
+            return;
+        }
+
+        final long sinceLastRescan = System.currentTimeMillis() - lastRescans.getOrDefault(dir, 0L);
+        final long delay = Math.max(0, RESCAN_INTERVAL_MILLIS - sinceLastRescan);
+        LOG.debug("Scheduling rescan of {} in {} ms", dir, delay);
+        rescanExecutor.schedule(() -> rescan(dir), delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void rescan(final Path dir) {
+        // Overflow during the rescan must schedule the next one
+        scheduledDirs.remove(dir);
+        lastRescans.put(dir, System.currentTimeMillis());
+
+        try {
+            final Map<String, EntryState> currentEntries = readEntries(dir);
+            final Map<String, EntryState> entries = new HashMap<>(currentEntries);
+            final Map<String, EntryState> snapshot = snapshots.getIfPresent(dir);
+            final String dirPathLower = PathUtil.extractDropboxPath(localDir, dir).toLowerCase(Locale.getDefault());
+
+            int changes = 0;
+            for (final DropboxFileData fileData : metadataDao.readLoadedChildren(dirPathLower)) {
+                final String name = fileData.getPathLower().substring(dirPathLower.length() + 1);
+                final EntryState entry = entries.remove(name);
+                if (entry == null) {
+                    emit(StandardWatchEventKinds.ENTRY_DELETE, dir.resolve(name));
+                    changes++;
+                } else if (fileData.isFile() == entry.directory) {
+                    emit(StandardWatchEventKinds.ENTRY_DELETE, entry.path);
+                    emit(StandardWatchEventKinds.ENTRY_CREATE, entry.path);
+                    changes++;
+                } else if (!entry.directory
+                        && isModified(fileData, entry, snapshot == null ? null : snapshot.get(name))) {
+                    emit(StandardWatchEventKinds.ENTRY_MODIFY, entry.path);
+                    changes++;
+                }
+            }
+
+            for (final EntryState entry : entries.values()) {
+                emit(StandardWatchEventKinds.ENTRY_CREATE, entry.path);
+                changes++;
+            }
+
+            snapshots.put(dir, currentEntries);
+            LOG.debug("Rescanned {}, found {} changes", dir, changes);
+
+        } catch (final IOException ex) {
+            snapshots.invalidate(dir);
+            LOG.warn("Failed to rescan {}: {}", dir, ex.getMessage());
+        }
+    }
+
+    private boolean isModified(final DropboxFileData fileData, final EntryState entry,
+                               final EntryState snapshotEntry) {
+        return fileData.getSize() != entry.size
+                || snapshotEntry != null && snapshotEntry.lastModified != entry.lastModified;
+    }
+
+    private void emit(final Kind<Path> kind, final Path path) {
+        LOG.trace("Rescan found {} on {}", kind, path);
+        eventConsumer.accept(kind, path);
+    }
+
+    /**
+     * Reads the directory entries keyed by lower case name, the same way the
+     * names are kept in metadata.
+     */
+    private static Map<String, EntryState> readEntries(final Path dir) throws IOException {
+        final Map<String, EntryState> entries = new HashMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (final Path path : stream) {
+                try {
+                    final BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                    entries.put(path.getFileName().toString().toLowerCase(Locale.getDefault()),
+                            new EntryState(path, attributes));
+                } catch (final NoSuchFileException ex) {
+                    LOG.trace("Entry removed during rescan: {}", () -> path);
+                }
+            }
+        }
+        return entries;
+    }
+
+    private static class EntryState {
+        private final Path path;
+        private final boolean directory;
+        private final long size;
+        private final long lastModified;
+
+        EntryState(final Path path, final BasicFileAttributes attributes) {
+            this.path = path;
+            this.directory = attributes.isDirectory();
+            this.size = attributes.size();
+            this.lastModified = attributes.lastModifiedTime().toMillis();
+        }
+    }
+
+}
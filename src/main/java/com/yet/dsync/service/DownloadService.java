@@ -27,8 +27,15 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 public class DownloadService
         extends AbstractChangeProcessingService<DropboxFileData> {
@@ -36,19 +43,40 @@ public class DownloadService
     private static final Logger LOG = LogManager
             .getLogger(DownloadService.class);
 
+    private static final int MAX_DOWNLOAD_ATTEMPTS = 5;
+
+    private static final long RETRY_DELAY_MILLIS = 1000;
+
+    private static final String TEMP_EXTENSION = ".part";
+
+    /* Segmented download leaves no contiguous prefix to resume from */
+    private static final String SEGMENTED_TEMP_EXTENSION = ".segments";
+
     private final MetadataDao metadataDao;
     private final LocalFolderService localFolderService;
     private final DropboxService dropboxService;
+    private final ContentHasher contentHasher;
+    private final SegmentedFileDownloader segmentedFileDownloader;
+    private final long segmentedDownloadThreshold;
 
     public DownloadService(final GlobalOperationsTracker globalOperationsTracker,
                            final MetadataDao metadaDao,
                            final LocalFolderService localFolderService,
-                           final DropboxService dropboxService) {
-        super("download", globalOperationsTracker);
+                           final DropboxService dropboxService,
+                           final ContentHasher contentHasher,
+                           final long segmentedDownloadThreshold,
+                           final int downloadConnections,
+                           final ExecutionMode executionMode,
+                           final int virtualConcurrency) {
+        super("download", globalOperationsTracker, executionMode, virtualConcurrency);
 
         this.metadataDao = metadaDao;
         this.localFolderService = localFolderService;
         this.dropboxService = dropboxService;
+        this.contentHasher = contentHasher;
+        this.segmentedDownloadThreshold = segmentedDownloadThreshold;
+        this.segmentedFileDownloader = new SegmentedFileDownloader(dropboxService, contentHasher,
+                downloadConnections);
     }
 
     private void downloadData(final DropboxFileData fileData) {
@@ -62,12 +90,18 @@ public class DownloadService
                 final File file = resolveFile(fileData);
 
                 if (file.getParentFile().exists()) {
-                    try (OutputStream fos = new BufferedOutputStream(new FileOutputStream(file))) {
-                        dropboxService.downloadFile(fileData.getPathDisplay(), fos);
-                        metadataDao.writeLoadedFlag(fileData.getId(), true);
-                    } catch (final IOException ex) {
-                        throw new DSyncClientException(ex);
+                    final File tempFile;
+                    if (fileData.getSize() >= segmentedDownloadThreshold) {
+                        tempFile = localFolderService.buildTempFile(fileData.getId(), fileData.getRev(),
+                                SEGMENTED_TEMP_EXTENSION);
+                        segmentedFileDownloader.download(fileData, tempFile);
+                    } else {
+                        tempFile = localFolderService.buildTempFile(fileData.getId(), fileData.getRev(),
+                                TEMP_EXTENSION);
+                        downloadToTempFile(fileData, tempFile);
                     }
+                    moveIntoPlace(tempFile, file);
+                    metadataDao.writeLoadedFlag(fileData.getId(), true);
                     LOG.info("Downloaded {}", () -> fileData.getPathDisplay());
                 } else {
                     LOG.warn("Skipped {}", () -> fileData.getPathDisplay());
@@ -78,6 +112,88 @@ public class DownloadService
         }
     }
 
+    /**
+     * Downloads the file into the temporary file. Bytes that are already in
+     * the temporary file are not downloaded again, the rest of the file is
+     * requested from that offset. Download is retried if it fails or the
+     * result doesn't have the expected size. Temporary file that is longer
+     * than expected can't be resumed, so it is downloaded again.
+     */
+    private void downloadToTempFile(final DropboxFileData fileData, final File tempFile) {
+        final long size = fileData.getSize();
+        int attempt = 1;
+        while (true) {
+            long offset = tempFile.length();
+            if (offset > size) {
+                deleteTempFile(tempFile);
+                offset = 0;
+            }
+
+            try {
+                if (offset < size || !tempFile.exists()) {
+                    if (offset > 0) {
+                        LOG.info("Resuming download of {} from {} of {} bytes",
+                            fileData.getPathDisplay(), offset, size);
+                    }
+                    try (OutputStream fos = new BufferedOutputStream(new FileOutputStream(tempFile, true))) {
+                        dropboxService.downloadFile(fileData.getPathDisplay(), fileData.getRev(), offset, fos);
+                    }
+                }
+
+                if (tempFile.length() == size) {
+                    return;
+                }
+                LOG.warn("Downloaded {} bytes of {} instead of {}",
+                    tempFile.length(), fileData.getPathDisplay(), size);
+
+            } catch (final IOException | DSyncClientException ex) {
+                if (attempt >= MAX_DOWNLOAD_ATTEMPTS) {
+                    throw new DSyncClientException("Failed to download " + fileData.getPathDisplay(), ex);
+                }
+                LOG.warn("Failed to download {} (attempt {}): {}",
+                    fileData.getPathDisplay(), attempt, ex.getMessage());
+            }
+
+            if (attempt >= MAX_DOWNLOAD_ATTEMPTS) {
+                throw new DSyncClientException("Failed to download " + fileData.getPathDisplay());
+            }
+            sleepBeforeRetry(attempt);
+            attempt++;
+        }
+    }
+
+    /**
+     * Moves downloaded file into place with a rename, so the file never
+     * appears partially written.
+     */
+    private void moveIntoPlace(final File tempFile, final File file) {
+        try {
+            try {
+                Files.move(tempFile.toPath(), file.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (final AtomicMoveNotSupportedException ex) {
+                Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (final IOException ex) {
+            throw new DSyncClientException("Failed to move downloaded file to " + file.getAbsolutePath(), ex);
+        }
+    }
+
+    private void deleteTempFile(final File tempFile) {
+        if (tempFile.exists() && !tempFile.delete()) {
+            throw new DSyncClientException("Failed to delete temporary file: " + tempFile.getAbsolutePath());
+        }
+    }
+
+    private void sleepBeforeRetry(final int attempt) {
+        try {
+            TimeUnit.MILLISECONDS.sleep(RETRY_DELAY_MILLIS * attempt);
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new DSyncClientException(ex);
+        }
+    }
+
     private void deleteFileOrDirectory(final DropboxFileData fd) {
         localFolderService.deleteFileOrFolder(fd.getPathDisplay());
         metadataDao.deleteByLowerPath(fd.getPathLower());
@@ -126,12 +242,54 @@ public class DownloadService
     }
 
     public void downloadAllNotLoaded() {
-        final Collection<DropboxFileData> allNotLoaded = metadataDao.readAllNotLoaded();
+        final Collection<DropboxFileData> allNotLoaded = reconcileLocalFiles(metadataDao.readAllNotLoaded());
         LOG.debug("Downloading {} objects that are not loaded..",
             () -> allNotLoaded.size());
         allNotLoaded.forEach(this::scheduleProcessing);
     }
 
+    /**
+     * Finds files that are already on disk with the same size and content
+     * hash, which happens if the client stopped before the loaded flag was
+     * written, or the folder was restored from a backup. Such files are marked
+     * as loaded without downloading. Local files are hashed in parallel on the
+     * hashing pool.
+     *
+     * @return entries that still need to be downloaded
+     */
+    private Collection<DropboxFileData> reconcileLocalFiles(final Collection<DropboxFileData> notLoaded) {
+        final List<DropboxFileData> toDownload = new ArrayList<>();
+        final List<DropboxFileData> candidates = new ArrayList<>();
+        final List<CompletableFuture<Boolean>> sameContent = new ArrayList<>();
+
+        for (final DropboxFileData fileData : notLoaded) {
+            final File file = fileData.isFile() && fileData.getContentHash() != null
+                    ? localFolderService.buildFileObject(fileData.getPathDisplay()) : null;
+            if (file != null && file.isFile() && file.length() == fileData.getSize()) {
+                candidates.add(fileData);
+                sameContent.add(contentHasher.hashAsync(file.toPath())
+                        .handle((hash, ex) -> ex == null && hash.equals(fileData.getContentHash())));
+            } else {
+                toDownload.add(fileData);
+            }
+        }
+
+        final List<String> loadedIds = new ArrayList<>();
+        for (int i = 0; i < candidates.size(); i++) {
+            if (sameContent.get(i).join()) {
+                loadedIds.add(candidates.get(i).getId());
+            } else {
+                toDownload.add(candidates.get(i));
+            }
+        }
+
+        if (!loadedIds.isEmpty()) {
+            metadataDao.writeLoadedFlag(loadedIds, true);
+            LOG.info("Found {} files already downloaded", () -> loadedIds.size());
+        }
+        return toDownload;
+    }
+
     @Override
     protected void processChange(final DropboxFileData changeData) {
         downloadData(changeData);
@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 2017 Yuriy Tkach
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.yet.dsync.service;
+
+import com.dropbox.core.v2.files.ListFolderResult;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.yet.dsync.dao.ConfigDao;
+import com.yet.dsync.dto.DropboxFileData;
+import com.yet.dsync.exception.DSyncClientException;
+import com.yet.dsync.util.Config;
+import com.yet.dsync.util.DropboxUtil;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Streams the full recursive listing of Dropbox folder page by page. Each page
+ * is fetched, converted and handed over to the change listener, which is
+ * expected to persist it. Only after the listener returns the page cursor is
+ * saved, so the sync can be resumed from the last persisted page if the
+ * client is stopped in the middle.
+ *
+ * <p>In {@link InitialSyncMode#SERIAL} mode only one page is kept in memory at
+ * a time. In {@link InitialSyncMode#PIPELINED} mode the pages are handed over
+ * to a separate writer thread through a small bounded queue, so the next page
+ * is fetched from Dropbox while the previous one is persisted. The cursor is
+ * still saved by the writer, so resume works the same way in both modes.
+ */
+public class DropboxInitialSync implements Runnable {
+
+    private static final Logger LOG = LogManager.getLogger(DropboxInitialSync.class);
+
+    private static final int PIPELINE_QUEUE_CAPACITY = 4;
+
+    private static final long HAND_OVER_WAIT_MILLIS = 500;
+
+    private final DropboxListing listing;
+    private final ConfigDao configDao;
+    private final DropboxChange changeListener;
+    private final InitialSyncMode syncMode;
+
+    private long syncedEntries;
+    private long startNanos;
+
+    public DropboxInitialSync(final DropboxListing listing,
+                              final ConfigDao configDao,
+                              final DropboxChange changeListener,
+                              final InitialSyncMode syncMode) {
+        this.listing = listing;
+        this.configDao = configDao;
+        this.changeListener = changeListener;
+        this.syncMode = syncMode;
+    }
+
+    @Override
+    public void run() {
+        LOG.info("Started initial sync in {} mode", syncMode);
+
+        startNanos = System.nanoTime();
+        syncedEntries = 0;
+
+        try {
+            final String cursor = configDao.read(Config.CURSOR);
+
+            final ListFolderResult firstResult;
+            if (StringUtils.isEmpty(cursor)) {
+                firstResult = fetchFirstPage();
+            } else {
+                LOG.info("Resuming initial sync from saved cursor");
+                firstResult = fetchNextPage(cursor);
+            }
+
+            if (syncMode == InitialSyncMode.PIPELINED) {
+                runPipelined(firstResult);
+            } else {
+                runSerial(firstResult);
+            }
+
+            LOG.info("Initial sync done: {} entries at {} rows/sec", syncedEntries, rowsPerSecond());
+
+        } catch (final InterruptedException ex) {
+            LOG.error("Interrupted", ex);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void runSerial(final ListFolderResult firstResult) {
+        ListFolderResult listFolderResult = firstResult;
+        while (true) {
+            final Page page = new Page(convertPage(listFolderResult), listFolderResult);
+            persistPage(page);
+
+            if (page.isLast()) {
+                break;
+            }
+            listFolderResult = fetchNextPage(page.getCursor());
+        }
+    }
+
+    private void runPipelined(final ListFolderResult firstResult) throws InterruptedException {
+        final BlockingQueue<Page> pages = new ArrayBlockingQueue<>(PIPELINE_QUEUE_CAPACITY);
+
+        final ThreadFactory namedThreadFactory = new ThreadFactoryBuilder()
+                .setNameFormat("init-sync-writer-%d").build();
+        final ExecutorService writerExecutor = Executors.newSingleThreadExecutor(namedThreadFactory);
+
+        try {
+            final Future<?> writerFuture = writerExecutor.submit(() -> {
+                Page page;
+                do {
+                    page = pages.take();
+                    persistPage(page);
+                } while (!page.isLast());
+                return null;
+            });
+
+            ListFolderResult listFolderResult = firstResult;
+            while (true) {
+                final Page page = new Page(convertPage(listFolderResult), listFolderResult);
+                handOver(pages, page, writerFuture);
+
+                if (page.isLast()) {
+                    break;
+                }
+                listFolderResult = fetchNextPage(page.getCursor());
+            }
+
+            waitForWriter(writerFuture);
+        } finally {
+            writerExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Puts the page into the hand-off queue. While the queue is full the
+     * fetcher is blocked, but it checks from time to time that the writer
+     * is still alive, so writer failure doesn't hang the initial sync.
+     */
+    private void handOver(final BlockingQueue<Page> pages, final Page page,
+                          final Future<?> writerFuture) throws InterruptedException {
+        while (!pages.offer(page, HAND_OVER_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+            if (writerFuture.isDone()) {
+                waitForWriter(writerFuture);
+                throw new DSyncClientException("Initial sync writer stopped unexpectedly");
+            }
+        }
+    }
+
+    private void waitForWriter(final Future<?> writerFuture) throws InterruptedException {
+        try {
+            writerFuture.get();
+        } catch (final ExecutionException ex) {
+            throw new DSyncClientException("Failed to persist initial sync page", ex.getCause());
+        }
+    }
+
+    private void persistPage(final Page page) {
+        changeListener.processChange(page.getEntries());
+        syncedEntries += page.getEntries().size();
+
+        configDao.write(Config.CURSOR, page.getCursor());
+
+        reportProgress();
+    }
+
+    private ListFolderResult fetchFirstPage() {
+        return listing.listFolder(StringUtils.EMPTY, true);
+    }
+
+    private ListFolderResult fetchNextPage(final String cursor) {
+        return listing.listFolderContinue(cursor);
+    }
+
+    private Set<DropboxFileData> convertPage(final ListFolderResult listFolderResult) {
+        return listFolderResult.getEntries().stream()
+                .map(DropboxUtil::convertMetadata)
+                .collect(Collectors.toCollection(LinkedHashSet::new));
+    }
+
+    private void reportProgress() {
+        LOG.debug("Initial sync: {} entries written ({} rows/sec)", syncedEntries, rowsPerSecond());
+    }
+
+    private long rowsPerSecond() {
+        final long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        return elapsedMillis == 0 ? syncedEntries : syncedEntries * TimeUnit.SECONDS.toMillis(1) / elapsedMillis;
+    }
+
+    /**
+     * One converted listing page together with the cursor that points after it
+     */
+    private static class Page {
+        private final Set<DropboxFileData> entries;
+        private final String cursor;
+        private final boolean last;
+
+        Page(final Set<DropboxFileData> entries, final ListFolderResult listFolderResult) {
+            this.entries = entries;
+            this.cursor = listFolderResult.getCursor();
+            this.last = !listFolderResult.getHasMore();
+        }
+
+        public Set<DropboxFileData> getEntries() {
+            return entries;
+        }
+
+        public String getCursor() {
+            return cursor;
+        }
+
+        public boolean isLast() {
+            return last;
+        }
+    }
+
+}
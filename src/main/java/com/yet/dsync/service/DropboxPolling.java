@@ -25,6 +25,7 @@ import com.yet.dsync.util.DropboxUtil;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.util.LinkedHashSet;
 import java.util.Set;
 import java.util.stream.Collectors;
 
@@ -58,13 +59,15 @@ public class DropboxPolling implements Runnable {
 
             while (!Thread.interrupted()) {
                 cursor = listFolderResult.getCursor();
-                saveCursor(cursor);
 
+                // Order matters, as the same path can be deleted and created again within one page
                 final Set<DropboxFileData> fileDataSet = listFolderResult.getEntries().stream()
                     .map(DropboxUtil::convertMetadata)
-                    .collect(Collectors.toSet());
+                    .collect(Collectors.toCollection(LinkedHashSet::new));
 
+                // Blocks while the processing queues are full, so next page waits for room
                 changeListener.processChange(fileDataSet);
+                saveCursor(cursor);
 
                 if (listFolderResult.getHasMore()) {
                     listFolderResult = client.files().listFolderContinue(cursor);
@@ -23,22 +23,17 @@ import com.dropbox.core.DbxRequestConfig.Builder;
 import com.dropbox.core.DbxWebAuth;
 import com.dropbox.core.DbxWebAuth.Request;
 import com.dropbox.core.v2.DbxClientV2;
-import com.dropbox.core.v2.files.CommitInfo;
-import com.dropbox.core.v2.files.DeleteErrorException;
+import com.dropbox.core.v2.files.DownloadBuilder;
 import com.dropbox.core.v2.files.FileMetadata;
 import com.dropbox.core.v2.files.ListFolderGetLatestCursorResult;
 import com.dropbox.core.v2.files.ListFolderResult;
 import com.dropbox.core.v2.files.Metadata;
 import com.dropbox.core.v2.files.UploadBuilder;
-import com.dropbox.core.v2.files.UploadSessionAppendV2Uploader;
-import com.dropbox.core.v2.files.UploadSessionCursor;
-import com.dropbox.core.v2.files.UploadSessionFinishUploader;
-import com.dropbox.core.v2.files.UploadSessionStartResult;
-import com.dropbox.core.v2.files.UploadSessionStartUploader;
 import com.dropbox.core.v2.files.WriteMode;
 import com.dropbox.core.v2.users.FullAccount;
 import com.dropbox.core.v2.users.SpaceUsage;
 import com.yet.dsync.dao.ConfigDao;
+import com.yet.dsync.dao.UploadSessionDao;
 import com.yet.dsync.dto.DropboxFileData;
 import com.yet.dsync.dto.UserData;
 import com.yet.dsync.exception.DSyncClientException;
@@ -49,7 +44,10 @@ import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -58,15 +56,15 @@ import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.nio.charset.Charset;
 import java.util.Date;
-import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
-public class DropboxService {
+public class DropboxService implements DropboxListing {
 
     private static final Logger LOG = LogManager.getLogger(DropboxService.class);
 
     /* According to API, can't upload chunks/files more than 150MB */
-    private static final long MAX_FILE_UPLOAD_CHUNK = 150 * 1024 * 1024;
+    public static final int MAX_FILE_UPLOAD_CHUNK = 150 * 1024 * 1024;
 
     private static final int MAX_RETRIES = 3;
 
@@ -75,14 +73,25 @@ public class DropboxService {
 
     private DbxClientV2 client;
     private DbxRequestConfig config;
+    private LargeFileUploader largeFileUploader;
+    private FileOperationBatcher fileOperationBatcher;
     private final ConfigDao configDao;
+    private final UploadSessionDao uploadSessionDao;
+    private final int uploadChunkSize;
+    private final int uploadParallelism;
 
     private String appKeyFromProvider = "YOUR_APP_KEY";
 
     private String appSecretFromProvider = "YOUR_APP_SECRET";
 
-    public DropboxService(final ConfigDao configDao) {
+    public DropboxService(final ConfigDao configDao,
+                          final UploadSessionDao uploadSessionDao,
+                          final int uploadChunkSize,
+                          final int uploadParallelism) {
         this.configDao = configDao;
+        this.uploadSessionDao = uploadSessionDao;
+        this.uploadChunkSize = uploadChunkSize;
+        this.uploadParallelism = uploadParallelism;
     }
 
     public void createConfig() {
@@ -159,8 +168,11 @@ public class DropboxService {
     public void createClient() {
         final String accessToken = configDao.read(Config.ACCESS_TOKEN);
         client = new DbxClientV2(config, accessToken);
+        largeFileUploader = new LargeFileUploader(client, uploadSessionDao, uploadChunkSize, uploadParallelism);
+        fileOperationBatcher = new FileOperationBatcher(client);
     }
 
+    @Override
     public String retrieveLatestCursor() {
         try {
             final ListFolderGetLatestCursorResult result = client.files()
@@ -172,6 +184,26 @@ public class DropboxService {
         }
     }
 
+    @Override
+    public ListFolderResult listFolder(final String path, final boolean recursive) {
+        try {
+            return client.files()
+                    .listFolderBuilder(path)
+                    .withRecursive(recursive).start();
+        } catch (final DbxException ex) {
+            throw new DSyncClientException(ex);
+        }
+    }
+
+    @Override
+    public ListFolderResult listFolderContinue(final String cursor) {
+        try {
+            return client.files().listFolderContinue(cursor);
+        } catch (final DbxException ex) {
+            throw new DSyncClientException(ex);
+        }
+    }
+
     public UserData retrieveUserData() {
         try {
             final FullAccount account = client.users().getCurrentAccount();
@@ -191,49 +223,50 @@ public class DropboxService {
         return new DropboxPolling(client, configDao, changeListener);
     }
 
-    public Runnable createInitialSyncThread(final DropboxChange changeListener) {
-        return () -> {
-            try {
-                String cursor = configDao.read(Config.CURSOR);
-                ListFolderResult listFolderResult = null;
-
-                if (cursor.isEmpty()) {
-                    listFolderResult = client.files()
-                            .listFolderBuilder(StringUtils.EMPTY)
-                            .withRecursive(Boolean.TRUE).start();
-
-                    final Set<DropboxFileData> fileDataSet = listFolderResult.getEntries().stream()
-                            .map(DropboxUtil::convertMetadata)
-                            .collect(Collectors.toSet());
-
-                    changeListener.processChange(fileDataSet);
-
-                    cursor = listFolderResult.getCursor();
-                    configDao.write(Config.CURSOR, cursor);
-                }
-
-                while (listFolderResult == null || listFolderResult.getHasMore()) {
-                    listFolderResult = client.files().listFolderContinue(cursor);
-
-                    final Set<DropboxFileData> fileDataSet = listFolderResult.getEntries().stream()
-                            .map(DropboxUtil::convertMetadata)
-                            .collect(Collectors.toSet());
-
-                    changeListener.processChange(fileDataSet);
-
-                    cursor = listFolderResult.getCursor();
-                    configDao.write(Config.CURSOR, cursor);
-                }
+    public Runnable createInitialSyncThread(final InitialSyncMode syncMode,
+                                            final int listingThreads,
+                                            final DropboxChange changeListener) {
+        if (syncMode == InitialSyncMode.PARTITIONED) {
+            if (StringUtils.isEmpty(configDao.read(Config.CURSOR))) {
+                return new PartitionedInitialSync(this, configDao, changeListener, listingThreads);
+            } else {
+                LOG.info("Found cursor of interrupted initial sync. Resuming it in serial mode");
+                return new DropboxInitialSync(this, configDao, changeListener, InitialSyncMode.SERIAL);
+            }
+        } else {
+            return new DropboxInitialSync(this, configDao, changeListener, syncMode);
+        }
+    }
 
-            } catch (final Exception ex) {
-                LOG.error("Failed in initial sync", ex);
+    /**
+     * Downloads revision of the file starting from the offset. Revision is
+     * requested explicitly, so the rest of the file always comes from the same
+     * content as its beginning.
+     */
+    public void downloadFile(final String path, final String rev, final long offset,
+                             final OutputStream outputStream) {
+        download(path, rev, outputStream, downloadBuilder -> {
+            if (offset > 0) {
+                downloadBuilder.range(offset);
             }
-        };
+        });
     }
 
-    public void downloadFile(final String path, final OutputStream outputStream) {
+    /**
+     * Downloads the byte range of the file revision
+     */
+    public void downloadFileRange(final String path, final String rev, final long offset, final long length,
+                                  final OutputStream outputStream) {
+        download(path, rev, outputStream, downloadBuilder -> downloadBuilder.range(offset, length));
+    }
+
+    private void download(final String path, final String rev, final OutputStream outputStream,
+                          final Consumer<DownloadBuilder> rangeSetter) {
         try {
-            final DbxDownloader<FileMetadata> downloader = client.files().download(path);
+            final DownloadBuilder downloadBuilder = client.files()
+                    .downloadBuilder(rev == null ? path : "rev:" + rev);
+            rangeSetter.accept(downloadBuilder);
+            final DbxDownloader<FileMetadata> downloader = downloadBuilder.start();
 
             downloader.download(outputStream);
         } catch (final Exception ex) {
@@ -242,94 +275,56 @@ public class DropboxService {
         }
     }
 
-    public void deleteFile(final String dropboxPath) {
-        try {
-            client.files().delete(dropboxPath);
-        } catch (final DeleteErrorException ex) {
-            if (ex.errorValue.getPathLookupValue().isNotFound()) {
-                LOG.warn("Didn't delete, because path was not found on server: {}", () -> dropboxPath);
-            } else {
-                LOG.error("Failed to delete from Dropbox: " + dropboxPath, ex);
-                throw new DSyncClientException(ex);
-            }
-        } catch (final DbxException ex) {
-            LOG.error("Failed to delete from Dropbox: " + dropboxPath, ex);
-            throw new DSyncClientException(ex);
-        }
+    /**
+     * Deletes the path with everything under it. Delete is sent in a batch
+     * with other deletes of the short window, so the call doesn't wait for
+     * it. The future is completed when the batch is, and fails if the delete
+     * failed.
+     */
+    public CompletableFuture<Void> deleteFile(final String dropboxPath) {
+        return fileOperationBatcher.delete(dropboxPath).thenApply(metadata -> null);
     }
 
-    public DropboxFileData createFolder(final String dropboxPath) {
-        try {
-            final Metadata metadata = client.files().createFolder(dropboxPath);
-            return DropboxUtil.convertMetadata(metadata);
-        } catch (final DbxException ex) {
-            LOG.error("Failed to create folder in Dropbox: " + dropboxPath, ex);
-            throw new DSyncClientException(ex);
-        }
+    /**
+     * Creates the folder in a batch with other folders, see
+     * {@link #deleteFile(String)}.
+     */
+    public CompletableFuture<DropboxFileData> createFolder(final String dropboxPath) {
+        return fileOperationBatcher.createFolder(dropboxPath).thenApply(DropboxUtil::convertMetadata);
     }
 
     public DropboxFileData uploadFile(final String dropboxPath,
-                                      final InputStream inputStream,
+                                      final File file,
                                       final long size,
                                       final Date lastModified,
                                       final boolean override) {
-        try {
+        final WriteMode writeMode = override ? WriteMode.OVERWRITE : WriteMode.ADD;
+        final Boolean autoRename = override ? Boolean.FALSE : Boolean.TRUE;
 
-            final Metadata metadata;
-
-            int chunks = (int) (size / MAX_FILE_UPLOAD_CHUNK);
-            if (chunks * MAX_FILE_UPLOAD_CHUNK <= size) {
-                chunks += 1;
-            }
-
-            final WriteMode writeMode = override ? WriteMode.OVERWRITE : WriteMode.ADD;
-            final Boolean autoRename = override ? Boolean.FALSE : Boolean.TRUE;
-
-            if (chunks == 1) {
-                LOG.debug("File size is smaller than MAX. Uploading in single call ({})", () -> dropboxPath);
+        final Metadata metadata;
+        if (size <= largeFileUploader.getChunkSize()) {
+            LOG.debug("File size is smaller than chunk. Uploading in single call ({})", () -> dropboxPath);
+            try (InputStream inputStream = new BufferedInputStream(new FileInputStream(file))) {
                 final UploadBuilder uploadBuilder = client.files().uploadBuilder(dropboxPath);
                 uploadBuilder.withClientModified(lastModified);
                 uploadBuilder.withMode(writeMode);
                 uploadBuilder.withAutorename(autoRename);
                 metadata = uploadBuilder.uploadAndFinish(inputStream);
 
-            } else {
-                LOG.debug("Chunk upload (1 of {}) for {}", chunks, dropboxPath);
-                final UploadSessionStartUploader startUploader = client.files().uploadSessionStart();
-                final UploadSessionStartResult startResult = startUploader
-                        .uploadAndFinish(inputStream, MAX_FILE_UPLOAD_CHUNK);
-                int chunksUploaded = 1;
-
-                final String sessionId = startResult.getSessionId();
-
-                while (chunksUploaded < (chunks - 1)) {
-                    LOG.debug("Chunk upload ({} of {}) for {}", chunksUploaded + 1, chunks, dropboxPath);
-                    final UploadSessionCursor cursor = new UploadSessionCursor(
-                            sessionId, chunksUploaded * MAX_FILE_UPLOAD_CHUNK);
-                    final UploadSessionAppendV2Uploader appendUploader = client.files()
-                            .uploadSessionAppendV2(cursor);
-                    appendUploader.uploadAndFinish(inputStream, MAX_FILE_UPLOAD_CHUNK);
-                    chunksUploaded++;
-                }
-
-                LOG.debug("Chunk upload ({} of {}) for {}", chunksUploaded + 1, chunks, dropboxPath);
-                final UploadSessionCursor cursor = new UploadSessionCursor(
-                        sessionId, chunksUploaded * MAX_FILE_UPLOAD_CHUNK);
-                final CommitInfo commitInfo = new CommitInfo(dropboxPath, writeMode,
-                        autoRename, lastModified, false);
-                final UploadSessionFinishUploader finishUploader = client.files()
-                        .uploadSessionFinish(cursor, commitInfo);
-                metadata = finishUploader.uploadAndFinish(inputStream);
-
-                LOG.debug("Upload completed for {}", () -> dropboxPath);
+            } catch (final DbxException | IOException ex) {
+                LOG.error("Failed to upload file to Dropbox: " + dropboxPath, ex);
+                throw new DSyncClientException(ex);
+            }
+        } else {
+            try {
+                metadata = largeFileUploader.upload(dropboxPath, file, size, lastModified, writeMode, autoRename);
+            } catch (final DSyncClientException ex) {
+                LOG.error("Failed to upload file to Dropbox: " + dropboxPath, ex);
+                throw ex;
             }
-
-            return DropboxUtil.convertMetadata(metadata);
-
-        } catch (final DbxException | IOException ex) {
-            LOG.error("Failed to upload file to Dropbox: " + dropboxPath, ex);
-            throw new DSyncClientException(ex);
         }
+
+        return DropboxUtil.convertMetadata(metadata);
     }
 
 }
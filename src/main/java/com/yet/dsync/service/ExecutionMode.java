@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2017 Yuriy Tkach
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+
+package com.yet.dsync.service;
+
+import com.yet.dsync.exception.DSyncClientException;
+
+import java.util.Locale;
+
+public enum ExecutionMode {
+
+    /**
+     * Changes are processed by pools of platform threads, sized by the
+     * observed throughput of each lane.
+     */
+    PLATFORM,
+
+    /**
+     * Each change is processed on its own virtual thread, and the number of
+     * changes in flight is limited per lane. Requires Java 21 or later.
+     */
+    VIRTUAL;
+
+    public static ExecutionMode fromOption(final String option) {
+        try {
+            return valueOf(option.trim().toUpperCase(Locale.ENGLISH));
+        } catch (final IllegalArgumentException ex) {
+            throw new DSyncClientException("Unknown execution mode " + option, ex);
+        }
+    }
+
+}
@@ -0,0 +1,390 @@
+/*
+ * Copyright (c) 2017 Yuriy Tkach
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.yet.dsync.service;
+
+import com.dropbox.core.DbxException;
+import com.dropbox.core.v2.DbxClientV2;
+import com.dropbox.core.v2.files.CreateFolderBatchJobStatus;
+import com.dropbox.core.v2.files.CreateFolderBatchLaunch;
+import com.dropbox.core.v2.files.CreateFolderBatchResult;
+import com.dropbox.core.v2.files.CreateFolderBatchResultEntry;
+import com.dropbox.core.v2.files.DeleteArg;
+import com.dropbox.core.v2.files.DeleteBatchJobStatus;
+import com.dropbox.core.v2.files.DeleteBatchLaunch;
+import com.dropbox.core.v2.files.DeleteBatchResult;
+import com.dropbox.core.v2.files.DeleteBatchResultEntry;
+import com.dropbox.core.v2.files.DeleteError;
+import com.dropbox.core.v2.files.Metadata;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.yet.dsync.exception.DSyncClientException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Collects folder creates and deletes that come within a short window and
+ * sends them to Dropbox with the batch calls, so many small operations cost
+ * one request and one namespace lock instead of one each. Batch is sent
+ * when the window passes after its first operation, or at once when it is
+ * full. Deletes of entries under a folder that is deleted in the same
+ * batch are not sent, as the delete of the folder removes them.
+ *
+ * <p>Dropbox either completes the batch right away, or returns the id of
+ * the job, which is checked later on the same scheduler. No thread waits
+ * for the job. Callers get the future of their own entry, failed with
+ * {@link DSyncClientException} if the entry or the whole batch failed.
+ * Callers don't wait for the batch, so the number of not completed entries
+ * is limited, and adding the entry above the limit waits for room.
+ */
+public class FileOperationBatcher {
+
+    private static final Logger LOG = LogManager.getLogger(FileOperationBatcher.class);
+
+    private static final long BATCH_WINDOW_MILLIS = 200;
+
+    /* According to API, batch can't have more than 1000 entries */
+    private static final int MAX_BATCH_SIZE = 1000;
+
+    private static final long JOB_CHECK_DELAY_MILLIS = 500;
+
+    private static final int SCHEDULER_THREADS = 4;
+
+    private static final int MAX_PENDING_ENTRIES = 4 * MAX_BATCH_SIZE;
+
+    private final DbxClientV2 client;
+
+    private final ScheduledExecutorService scheduler;
+
+    private final Semaphore pendingRoom = new Semaphore(MAX_PENDING_ENTRIES);
+
+    private final Batch deletes = new DeleteBatch();
+
+    private final Batch folderCreates = new CreateFolderBatch();
+
+    public FileOperationBatcher(final DbxClientV2 client) {
+        this.client = client;
+
+        final ThreadFactory namedThreadFactory = new ThreadFactoryBuilder()
+                .setNameFormat("dropbox-batch-%d").setDaemon(true).build();
+        this.scheduler = Executors.newScheduledThreadPool(SCHEDULER_THREADS, namedThreadFactory);
+    }
+
+    /**
+     * Deletes the path with everything under it. Path that is already
+     * missing on the server counts as deleted.
+     *
+     * @return future with metadata of the deleted entry, or null if it was
+     *         not found
+     */
+    public CompletableFuture<Metadata> delete(final String dropboxPath) {
+        return deletes.add(dropboxPath);
+    }
+
+    /**
+     * Creates the folder.
+     *
+     * @return future with metadata of the created folder
+     */
+    public CompletableFuture<Metadata> createFolder(final String dropboxPath) {
+        return folderCreates.add(dropboxPath);
+    }
+
+    private static void failUnanswered(final Iterator<Entry> entryIterator) {
+        while (entryIterator.hasNext()) {
+            final Entry entry = entryIterator.next();
+            failEntry(entry, "No batch result for " + entry.path);
+        }
+    }
+
+    private static void failEntry(final Entry entry, final String message) {
+        LOG.error(message);
+        entry.result.completeExceptionally(new DSyncClientException(message));
+    }
+
+    private static class Entry {
+        private final String path;
+        private final CompletableFuture<Metadata> result = new CompletableFuture<>();
+
+        Entry(final String path) {
+            this.path = path;
+        }
+    }
+
+    /**
+     * Pending entries of one kind of operation and the way to send them.
+     */
+    private abstract class Batch {
+        private final String name;
+
+        private List<Entry> pending = new ArrayList<>();
+
+        Batch(final String name) {
+            this.name = name;
+        }
+
+        CompletableFuture<Metadata> add(final String path) {
+            try {
+                pendingRoom.acquire();
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new DSyncClientException(ex);
+            }
+            final Entry entry = new Entry(path);
+            entry.result.whenComplete((metadata, error) -> pendingRoom.release());
+            final List<Entry> full;
+            synchronized (this) {
+                pending.add(entry);
+                if (pending.size() == 1) {
+                    scheduler.schedule(this::flush, BATCH_WINDOW_MILLIS, TimeUnit.MILLISECONDS);
+                }
+                full = pending.size() >= MAX_BATCH_SIZE ? takePending() : null;
+            }
+            if (full != null) {
+                scheduler.execute(() -> send(full));
+            }
+            return entry.result;
+        }
+
+        private void flush() {
+            final List<Entry> entries;
+            synchronized (this) {
+                entries = takePending();
+            }
+            if (!entries.isEmpty()) {
+                send(entries);
+            }
+        }
+
+        private List<Entry> takePending() {
+            final List<Entry> entries = pending;
+            pending = new ArrayList<>();
+            return entries;
+        }
+
+        private void send(final List<Entry> entries) {
+            try {
+                final List<Entry> sent = collapse(entries);
+                LOG.debug("Sending {} batch of {} entries ({} requested)", name, sent.size(), entries.size());
+                final List<String> paths = sent.stream().map(entry -> entry.path).collect(Collectors.toList());
+                final String jobId = launch(paths, sent);
+                if (jobId != null) {
+                    scheduleCheck(jobId, sent);
+                }
+            } catch (final DbxException | RuntimeException ex) {
+                fail(entries, ex);
+            }
+        }
+
+        private void scheduleCheck(final String jobId, final List<Entry> entries) {
+            scheduler.schedule(() -> {
+                try {
+                    if (check(jobId, entries)) {
+                        LOG.debug("Finished {} batch job {}", name, jobId);
+                    } else {
+                        scheduleCheck(jobId, entries);
+                    }
+                } catch (final DbxException | RuntimeException ex) {
+                    fail(entries, ex);
+                }
+            }, JOB_CHECK_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        private void fail(final List<Entry> entries, final Exception ex) {
+            LOG.error("Failed " + name + " batch of " + entries.size() + " entries", ex);
+            final DSyncClientException failure = new DSyncClientException(ex);
+            entries.forEach(entry -> entry.result.completeExceptionally(failure));
+        }
+
+        /**
+         * Selects entries that are sent to the server. Entries that are not
+         * sent must be completed by the ones that are.
+         */
+        List<Entry> collapse(final List<Entry> entries) {
+            return entries;
+        }
+
+        /**
+         * Starts the batch on the server.
+         *
+         * @return id of the job to check, or null if entries are completed
+         */
+        abstract String launch(List<String> paths, List<Entry> entries) throws DbxException;
+
+        /**
+         * Checks the job of the batch.
+         *
+         * @return true if entries are completed
+         */
+        abstract boolean check(String jobId, List<Entry> entries) throws DbxException;
+    }
+
+    private class DeleteBatch extends Batch {
+
+        DeleteBatch() {
+            super("delete");
+        }
+
+        /**
+         * Leaves only the roots of deleted subtrees. Entry under other entry
+         * of the batch, or with the same path, is completed together with it.
+         */
+        @Override
+        List<Entry> collapse(final List<Entry> entries) {
+            final Map<String, Entry> roots = new HashMap<>();
+            for (final Entry entry : entries) {
+                roots.putIfAbsent(entry.path.toLowerCase(Locale.getDefault()), entry);
+            }
+
+            final List<Entry> sent = new ArrayList<>(entries.size());
+            for (final Entry entry : entries) {
+                final Entry root = findRoot(entry, roots);
+                if (root == entry) {
+                    sent.add(entry);
+                } else {
+                    LOG.trace("Delete of {} is covered by delete of {}", entry.path, root.path);
+                    root.result.whenComplete((metadata, error) -> {
+                        if (error == null) {
+                            entry.result.complete(null);
+                        } else {
+                            entry.result.completeExceptionally(error);
+                        }
+                    });
+                }
+            }
+            return sent;
+        }
+
+        private Entry findRoot(final Entry entry, final Map<String, Entry> roots) {
+            final String pathLower = entry.path.toLowerCase(Locale.getDefault());
+            Entry root = roots.get(pathLower);
+            for (int index = pathLower.lastIndexOf('/'); index > 0; index = pathLower.lastIndexOf('/', index - 1)) {
+                final Entry ancestor = roots.get(pathLower.substring(0, index));
+                if (ancestor != null) {
+                    root = ancestor;
+                }
+            }
+            return root;
+        }
+
+        @Override
+        String launch(final List<String> paths, final List<Entry> entries) throws DbxException {
+            final List<DeleteArg> args = paths.stream().map(DeleteArg::new).collect(Collectors.toList());
+            final DeleteBatchLaunch launch = client.files().deleteBatch(args);
+            if (launch.isAsyncJobId()) {
+                return launch.getAsyncJobIdValue();
+            } else if (launch.isComplete()) {
+                complete(launch.getCompleteValue(), entries);
+                return null;
+            } else {
+                throw new DSyncClientException("Unexpected delete batch launch: " + launch);
+            }
+        }
+
+        @Override
+        boolean check(final String jobId, final List<Entry> entries) throws DbxException {
+            final DeleteBatchJobStatus status = client.files().deleteBatchCheck(jobId);
+            if (status.isComplete()) {
+                complete(status.getCompleteValue(), entries);
+                return true;
+            } else if (status.isFailed()) {
+                throw new DSyncClientException("Delete batch job failed: " + status.getFailedValue());
+            } else {
+                return false;
+            }
+        }
+
+        private void complete(final DeleteBatchResult result, final List<Entry> entries) {
+            final Iterator<Entry> entryIterator = entries.iterator();
+            for (final DeleteBatchResultEntry resultEntry : result.getEntries()) {
+                final Entry entry = entryIterator.next();
+                if (resultEntry.isSuccess()) {
+                    entry.result.complete(resultEntry.getSuccessValue().getMetadata());
+                } else if (isNotFound(resultEntry.getFailureValue())) {
+                    LOG.warn("Didn't delete, because path was not found on server: {}", () -> entry.path);
+                    entry.result.complete(null);
+                } else {
+                    failEntry(entry, "Failed to delete from Dropbox: " + entry.path + " "
+                            + resultEntry.getFailureValue());
+                }
+            }
+            failUnanswered(entryIterator);
+        }
+
+        private boolean isNotFound(final DeleteError error) {
+            return error.isPathLookup() && error.getPathLookupValue().isNotFound();
+        }
+    }
+
+    private class CreateFolderBatch extends Batch {
+
+        CreateFolderBatch() {
+            super("create folder");
+        }
+
+        @Override
+        String launch(final List<String> paths, final List<Entry> entries) throws DbxException {
+            final CreateFolderBatchLaunch launch = client.files().createFolderBatch(paths);
+            if (launch.isAsyncJobId()) {
+                return launch.getAsyncJobIdValue();
+            } else if (launch.isComplete()) {
+                complete(launch.getCompleteValue(), entries);
+                return null;
+            } else {
+                throw new DSyncClientException("Unexpected create folder batch launch: " + launch);
+            }
+        }
+
+        @Override
+        boolean check(final String jobId, final List<Entry> entries) throws DbxException {
+            final CreateFolderBatchJobStatus status = client.files().createFolderBatchCheck(jobId);
+            if (status.isComplete()) {
+                complete(status.getCompleteValue(), entries);
+                return true;
+            } else if (status.isFailed()) {
+                throw new DSyncClientException("Create folder batch job failed: " + status.getFailedValue());
+            } else {
+                return false;
+            }
+        }
+
+        private void complete(final CreateFolderBatchResult result, final List<Entry> entries) {
+            final Iterator<Entry> entryIterator = entries.iterator();
+            for (final CreateFolderBatchResultEntry resultEntry : result.getEntries()) {
+                final Entry entry = entryIterator.next();
+                if (resultEntry.isSuccess()) {
+                    entry.result.complete(resultEntry.getSuccessValue().getMetadata());
+                } else {
+                    failEntry(entry, "Failed to create folder in Dropbox: " + entry.path + " "
+                            + resultEntry.getFailureValue());
+                }
+            }
+            failUnanswered(entryIterator);
+        }
+    }
+
+}
@@ -14,15 +14,11 @@
 
 package com.yet.dsync.service;
 
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -32,58 +28,63 @@ import java.util.concurrent.TimeUnit;
  * after some time. This class will allow to skip the recursive operation
  * processing, when file that is downloaded from Dropbox being picked up by the
  * local folder watching service, and vice versa.
+ *
+ * <p>Each tracked path is mapped to the tick when its tracking expires, or to
+ * {@link #ACTIVE} while the operation is running. Stopped paths are put into
+ * the bucket of a timer wheel for their expiry tick, and a single thread
+ * sweeps the buckets as the time goes. Path that is started or stopped again
+ * before it expires gets a new value, so the earlier expiry doesn't remove it.
  */
 public class GlobalOperationsTracker {
 
     private static final int WAIT_TIME_BEFORE_TRACK_REMOVE_SEC = 3;
 
-    private static final int SCHEDULED_POOL_SIZE = 5;
+    private static final long TICK_MILLIS = 250;
 
-    private static final Logger LOG = LogManager
-            .getLogger(GlobalOperationsTracker.class);
+    private static final long WAIT_TICKS = TimeUnit.SECONDS.toMillis(WAIT_TIME_BEFORE_TRACK_REMOVE_SEC) / TICK_MILLIS;
 
-    private final ConcurrentMap<String, Boolean> trackMap = new ConcurrentHashMap<>();
+    /* Wheel covers the whole wait time, so a bucket holds one tick at a time */
+    private static final int WHEEL_SIZE = (int) WAIT_TICKS * 2;
 
-    private final ScheduledExecutorService scheduledExecutorService;
+    private static final Long ACTIVE = Long.MAX_VALUE;
 
-    public GlobalOperationsTracker() {
-        final ThreadFactory namedThreadFactory = new ThreadFactoryBuilder()
-                .setNameFormat("global-tracker-%d").build();
+    private static final Logger LOG = LogManager
+            .getLogger(GlobalOperationsTracker.class);
 
-        scheduledExecutorService = Executors.newScheduledThreadPool(
-                SCHEDULED_POOL_SIZE, namedThreadFactory);
-    }
+    private final ConcurrentMap<String, Long> trackMap = new ConcurrentHashMap<>();
+
+    private final TimerWheel<Expiry> wheel =
+            new TimerWheel<>("global-tracker-%d", TICK_MILLIS, WHEEL_SIZE, this::expire);
 
     public void start(final String pathLower) {
-        trackMap.putIfAbsent(pathLower, Boolean.TRUE);
+        trackMap.put(pathLower, ACTIVE);
         LOG.trace("Added path to global tracking: {}", () -> pathLower);
     }
 
     public void stop(final String pathLower) {
-        trackMap.put(pathLower, Boolean.FALSE);
+        final Long expiryTick = wheel.currentTick() + WAIT_TICKS;
+        trackMap.put(pathLower, expiryTick);
+        wheel.schedule(new Expiry(pathLower, expiryTick), expiryTick);
         LOG.trace("Scheduled tracking stop for path: {}", () -> pathLower);
-        scheduledExecutorService.schedule(new RemoveTrackingThread(pathLower),
-                WAIT_TIME_BEFORE_TRACK_REMOVE_SEC, TimeUnit.SECONDS);
     }
 
     public boolean isTracked(final String pathLower) {
         return trackMap.containsKey(pathLower);
     }
 
-    private class RemoveTrackingThread implements Runnable {
+    private void expire(final Expiry expiry) {
+        if (trackMap.remove(expiry.pathLower, expiry.tick)) {
+            LOG.trace("Competely removed path from global tracking: {}", () -> expiry.pathLower);
+        }
+    }
 
+    private static class Expiry {
         private final String pathLower;
+        private final Long tick;
 
-        RemoveTrackingThread(final String pathLower) {
+        Expiry(final String pathLower, final Long tick) {
             this.pathLower = pathLower;
+            this.tick = tick;
         }
-
-        @Override
-        public void run() {
-            trackMap.remove(pathLower);
-            LOG.trace("Competely removed path from global tracking: {}",
-                () -> pathLower);
-        }
-
     }
 }
@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2017 Yuriy Tkach
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.yet.dsync.service;
+
+import com.yet.dsync.exception.DSyncClientException;
+
+import java.util.Locale;
+
+public enum InitialSyncMode {
+
+    /**
+     * Next listing page is fetched only after the previous one is persisted.
+     */
+    SERIAL,
+
+    /**
+     * Next listing page is fetched while the previous one is being persisted.
+     * Entries are scheduled for download as soon as they are persisted.
+     */
+    PIPELINED,
+
+    /**
+     * Root folder is listed non-recursively, then each top-level folder is
+     * listed recursively on a separate worker.
+     */
+    PARTITIONED;
+
+    public boolean isDownloadingDuringSync() {
+        return this == PIPELINED;
+    }
+
+    public static InitialSyncMode fromOption(final String option) {
+        try {
+            return valueOf(option.trim().toUpperCase(Locale.ENGLISH));
+        } catch (final IllegalArgumentException ex) {
+            throw new DSyncClientException("Unknown initial sync mode " + option, ex);
+        }
+    }
+
+}
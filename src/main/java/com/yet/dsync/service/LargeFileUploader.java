@@ -0,0 +1,288 @@
+/*
+ * Copyright (c) 2017 Yuriy Tkach
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.yet.dsync.service;
+
+import com.dropbox.core.DbxException;
+import com.dropbox.core.v2.DbxClientV2;
+import com.dropbox.core.v2.files.CommitInfo;
+import com.dropbox.core.v2.files.FileMetadata;
+import com.dropbox.core.v2.files.UploadSessionCursor;
+import com.dropbox.core.v2.files.UploadSessionLookupError;
+import com.dropbox.core.v2.files.UploadSessionLookupErrorException;
+import com.dropbox.core.v2.files.UploadSessionType;
+import com.dropbox.core.v2.files.WriteMode;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.yet.dsync.dao.UploadSessionDao;
+import com.yet.dsync.dto.UploadSessionData;
+import com.yet.dsync.exception.DSyncClientException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Uploads large files through a concurrent upload session, which accepts
+ * appends at any offset, so chunks of one file are sent in parallel. Each
+ * chunk is read from the file with positional read by the thread that sends
+ * it, and failed chunk is sent again from memory, without restarting the
+ * whole upload. Chunk threads are shared by all files, so they also bound
+ * the memory taken by chunks.
+ *
+ * <p>Concurrent session requires every chunk except the last one to be a
+ * multiple of {@link #CHUNK_SIZE_UNIT}. The last chunk closes the session,
+ * and it is sent when all the others are received.
+ *
+ * <p>Session id and committed offset are persisted, so interrupted upload is
+ * resumed from the end of the chunks received in a row from the start. If
+ * the file was changed since then, or Dropbox doesn't know the session
+ * anymore, the upload starts again.
+ */
+public class LargeFileUploader {
+
+    private static final Logger LOG = LogManager.getLogger(LargeFileUploader.class);
+
+    private static final int MAX_CHUNK_RETRIES = 5;
+
+    private static final long RETRY_DELAY_MILLIS = 1000;
+
+    public static final int CHUNK_SIZE_UNIT = 4 * 1024 * 1024;
+
+    private final DbxClientV2 client;
+    private final UploadSessionDao uploadSessionDao;
+    private final int chunkSize;
+    private final ExecutorService chunkExecutor;
+
+    public LargeFileUploader(final DbxClientV2 client,
+                             final UploadSessionDao uploadSessionDao,
+                             final int chunkSize,
+                             final int parallelism) {
+        this.client = client;
+        this.uploadSessionDao = uploadSessionDao;
+        this.chunkSize = chunkSize;
+
+        final ThreadFactory namedThreadFactory = new ThreadFactoryBuilder()
+                .setNameFormat("upload-chunk-%d").setDaemon(true).build();
+        this.chunkExecutor = Executors.newFixedThreadPool(parallelism, namedThreadFactory);
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public FileMetadata upload(final String dropboxPath,
+                               final File file,
+                               final long size,
+                               final Date lastModified,
+                               final WriteMode writeMode,
+                               final boolean autoRename) {
+        final String localPath = file.getAbsolutePath();
+        final long fileModified = file.lastModified();
+        final CommitInfo commitInfo = CommitInfo.newBuilder(dropboxPath)
+                .withMode(writeMode)
+                .withAutorename(autoRename)
+                .withClientModified(lastModified)
+                .withMute(false)
+                .build();
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final UploadSessionData savedSession = uploadSessionDao.read(localPath);
+            if (savedSession != null) {
+                if (savedSession.isSameFile(size, fileModified)) {
+                    LOG.info("Resuming upload of {} from {} of {} bytes", dropboxPath, savedSession.getOffset(), size);
+                    try {
+                        return sendChunks(channel, savedSession, dropboxPath, commitInfo);
+                    } catch (final UploadSessionLookupErrorException ex) {
+                        LOG.info("Upload session of {} can't be resumed ({}). Starting again",
+                            dropboxPath, ex.getMessage());
+                    }
+                } else {
+                    LOG.debug("File {} changed since its upload was interrupted. Starting again", dropboxPath);
+                }
+            }
+
+            final UploadSessionData session = new UploadSessionData(localPath, startSession(),
+                    size, fileModified, 0);
+            uploadSessionDao.write(session);
+
+            return sendChunks(channel, session, dropboxPath, commitInfo);
+
+        } catch (final DbxException | IOException ex) {
+            throw new DSyncClientException(ex);
+        }
+    }
+
+    /**
+     * Sends the file from the committed offset of the session and finishes
+     * the session. Chunks before the last one are sent in parallel, and they
+     * are awaited in order, so the saved offset is the end of the chunks
+     * received in a row. Session state is removed when the upload is
+     * finished.
+     */
+    private FileMetadata sendChunks(final FileChannel channel,
+                                    final UploadSessionData session,
+                                    final String dropboxPath,
+                                    final CommitInfo commitInfo) throws DbxException, IOException {
+        final long size = session.getSize();
+        final long chunks = (size - session.getOffset() + chunkSize - 1) / chunkSize;
+        final long lastOffset = session.getOffset() + Math.max(chunks - 1, 0) * chunkSize;
+        LOG.debug("Uploading {} in {} chunks of {} bytes", dropboxPath, chunks, chunkSize);
+
+        final List<Future<?>> sentChunks = new ArrayList<>();
+        for (long offset = session.getOffset(); offset < lastOffset; offset += chunkSize) {
+            final long chunkOffset = offset;
+            sentChunks.add(chunkExecutor.submit(() -> {
+                sendChunk(channel, session.getSessionId(), chunkOffset, size, false);
+                return null;
+            }));
+        }
+
+        long offset = session.getOffset();
+        try {
+            for (int index = 0; index < sentChunks.size(); index++) {
+                awaitChunk(sentChunks.get(index));
+                offset += chunkSize;
+                uploadSessionDao.writeCommittedOffset(session.getLocalPath(), session.getSessionId(), offset);
+                LOG.debug("Chunk upload ({} of {}) for {}", index + 1, chunks, dropboxPath);
+            }
+        } finally {
+            sentChunks.forEach(sentChunk -> sentChunk.cancel(true));
+        }
+
+        if (offset < size) {
+            sendChunk(channel, session.getSessionId(), offset, size, true);
+            uploadSessionDao.writeCommittedOffset(session.getLocalPath(), session.getSessionId(), size);
+        }
+
+        final FileMetadata metadata = client.files()
+                .uploadSessionFinish(new UploadSessionCursor(session.getSessionId(), size), commitInfo)
+                .uploadAndFinish(emptyStream());
+        uploadSessionDao.delete(session.getLocalPath());
+
+        LOG.debug("Upload completed for {}", () -> dropboxPath);
+        return metadata;
+    }
+
+    /**
+     * Waits for the chunk sent by other thread and rethrows its failure.
+     */
+    private static void awaitChunk(final Future<?> sentChunk) throws DbxException, IOException {
+        try {
+            sentChunk.get();
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new DSyncClientException(ex);
+        } catch (final ExecutionException ex) {
+            final Throwable cause = ex.getCause();
+            if (cause instanceof DbxException) {
+                throw (DbxException) cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof DSyncClientException) {
+                throw (DSyncClientException) cause;
+            }
+            throw new DSyncClientException(cause);
+        }
+    }
+
+    private String startSession() throws DbxException, IOException {
+        return client.files().uploadSessionStartBuilder()
+                .withSessionType(UploadSessionType.CONCURRENT)
+                .start()
+                .uploadAndFinish(emptyStream())
+                .getSessionId();
+    }
+
+    private void sendChunk(final FileChannel channel, final String sessionId, final long offset,
+                           final long size, final boolean last) throws DbxException, IOException {
+        final byte[] chunk = readChunk(channel, offset, size);
+        appendChunk(sessionId, offset, chunk, last);
+    }
+
+    private byte[] readChunk(final FileChannel channel, final long offset, final long size) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(chunkSize, size - offset));
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new EOFException("File is shorter than expected, changed during upload?");
+            }
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Appends the chunk to the session, retrying it on failures. If the
+     * session reports that its offset is already after the chunk, then
+     * previous attempt reached the server, but the response was lost.
+     */
+    private void appendChunk(final String sessionId, final long offset, final byte[] chunk, final boolean last)
+            throws DbxException, IOException {
+        int attempt = 1;
+        while (true) {
+            try (InputStream chunkStream = new ByteArrayInputStream(chunk)) {
+                client.files().uploadSessionAppendV2Builder(new UploadSessionCursor(sessionId, offset))
+                        .withClose(last)
+                        .start()
+                        .uploadAndFinish(chunkStream);
+                return;
+
+            } catch (final UploadSessionLookupErrorException ex) {
+                final UploadSessionLookupError error = ex.errorValue;
+                if (error.isIncorrectOffset()
+                        && error.getIncorrectOffsetValue().getCorrectOffset() == offset + chunk.length) {
+                    LOG.debug("Chunk at offset {} was already received", offset);
+                    return;
+                }
+                throw ex;
+
+            } catch (final DbxException | IOException ex) {
+                if (attempt >= MAX_CHUNK_RETRIES) {
+                    throw ex;
+                }
+                LOG.warn("Failed to upload chunk at offset {} (attempt {}): {}", offset, attempt, ex.getMessage());
+                sleepBeforeRetry(attempt);
+                attempt++;
+            }
+        }
+    }
+
+    private void sleepBeforeRetry(final int attempt) {
+        try {
+            TimeUnit.MILLISECONDS.sleep(RETRY_DELAY_MILLIS * attempt);
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new DSyncClientException(ex);
+        }
+    }
+
+    private static InputStream emptyStream() {
+        return new ByteArrayInputStream(new byte[0]);
+    }
+
+}
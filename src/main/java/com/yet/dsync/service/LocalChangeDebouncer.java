@@ -0,0 +1,283 @@
+/*
+ * Copyright (c) 2017 Yuriy Tkach
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+
+package com.yet.dsync.service;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.yet.dsync.dto.LocalFolderChangeType;
+import com.yet.dsync.dto.LocalFolderData;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Collects local changes by path and passes on one net change per path once
+ * the path is quiet for the wait time. Events that come during the wait are
+ * merged with the pending change and start the wait again:
+ * <ul>
+ * <li>create followed by modify is still create</li>
+ * <li>create followed by delete cancels the change</li>
+ * <li>modify followed by delete is delete</li>
+ * <li>delete followed by create of a file is modify, while deleted and
+ * created directory is passed on as both changes</li>
+ * </ul>
+ *
+ * <p>When the wait is over, the size of the file is compared with the size
+ * at the last event, and the file that is still being written waits again.
+ * Waiting is driven by the timer wheel, so it takes no threads. Ready
+ * changes are handled on the small pool.
+ *
+ * <p>Number of changes that are pending or being handled is limited. When
+ * the handler is slowed down by the full upload queue, submitting thread
+ * waits for room, so the watcher stops reading events. Changes submitted by
+ * the handler itself, e.g. for the contents of a new folder, are submitted
+ * without waiting, as they would wait for their own handling.
+ */
+public class LocalChangeDebouncer {
+
+    private static final Logger LOG = LogManager.getLogger(LocalChangeDebouncer.class);
+
+    private static final long TICK_MILLIS = 100;
+
+    private static final int DISPATCH_THREAD_COUNT = 4;
+
+    private static final int MAX_CHANGES_IN_FLIGHT = 10_000;
+
+    private final long waitTicks;
+
+    private final ConcurrentMap<Path, PendingChange> pendingChanges = new ConcurrentHashMap<>();
+
+    private final TimerWheel<PendingChange> wheel;
+
+    private final ExecutorService dispatchExecutor;
+
+    private final Consumer<LocalFolderData> changeHandler;
+
+    private final Lock inFlightLock = new ReentrantLock();
+    private final Condition belowLimit = inFlightLock.newCondition();
+    private int changesInFlight;
+
+    public LocalChangeDebouncer(final long waitMillis, final Consumer<LocalFolderData> changeHandler) {
+        this.waitTicks = Math.max(1, waitMillis / TICK_MILLIS);
+        this.changeHandler = changeHandler;
+        this.wheel = new TimerWheel<>("local-change-wait-%d", TICK_MILLIS, (int) waitTicks * 2, this::onQuiet);
+
+        final ThreadFactory namedThreadFactory = new ThreadFactoryBuilder()
+                .setNameFormat("local-change-%d").build();
+        this.dispatchExecutor = Executors.newFixedThreadPool(DISPATCH_THREAD_COUNT, namedThreadFactory);
+    }
+
+    /**
+     * Adds the change, waiting for room if too many changes are in flight.
+     */
+    public void submit(final LocalFolderData change) {
+        submit(change, true);
+    }
+
+    /**
+     * Adds the change.
+     *
+     * @param change
+     *            change to add
+     * @param waitForRoom
+     *            whether to wait if too many changes are in flight. Must be
+     *            false when called from the change handler
+     */
+    public void submit(final LocalFolderData change, final boolean waitForRoom) {
+        final Path path = change.getPath();
+        final LocalFolderChangeType changeType = change.getChangeType();
+
+        reserve(waitForRoom);
+        while (true) {
+            final PendingChange previous = pendingChanges.get(path);
+            if (previous == null) {
+                final PendingChange pending = newPendingChange(path, changeType);
+                if (pendingChanges.putIfAbsent(path, pending) == null) {
+                    wheel.schedule(pending, pending.dueTick);
+                    return;
+                }
+            } else if (mergeInto(previous, changeType)) {
+                return;
+            }
+            // Other thread changed the pending change of the path, merge with the new one
+        }
+    }
+
+    /**
+     * Replaces the pending change with the merged one. Map is updated only by
+     * the atomic replace or remove, so the wheel and the dispatch are never
+     * touched while the map is locked.
+     *
+     * @return false if the pending change was replaced by other thread
+     */
+    private boolean mergeInto(final PendingChange previous, final LocalFolderChangeType next) {
+        final Path path = previous.path;
+        // Contents of the deleted directory must be deleted as well, so it is not merged
+        final boolean recreatedDirectory = previous.changeType == LocalFolderChangeType.DELETE
+                && next == LocalFolderChangeType.CREATE && path.toFile().isDirectory();
+        final LocalFolderChangeType merged = recreatedDirectory
+                ? LocalFolderChangeType.CREATE : merge(previous.changeType, next);
+
+        if (merged == null) {
+            if (!pendingChanges.remove(path, previous)) {
+                return false;
+            }
+            LOG.trace("Created and deleted path. Change is cancelled: {}", () -> path);
+            // Room of the cancelled change and of this one
+            release();
+            release();
+            return true;
+        }
+
+        final PendingChange pending = newPendingChange(path, merged);
+        if (!pendingChanges.replace(path, previous, pending)) {
+            return false;
+        }
+        if (recreatedDirectory) {
+            // Deleted directory keeps the room of the previous change, this one holds the room of the create
+            dispatch(new LocalFolderData(path, LocalFolderChangeType.DELETE));
+        } else {
+            // Previous change already holds the room
+            release();
+        }
+        wheel.schedule(pending, pending.dueTick);
+        return true;
+    }
+
+    private void reserve(final boolean waitForRoom) {
+        inFlightLock.lock();
+        try {
+            final long waitStart = System.nanoTime();
+            boolean waited = false;
+            while (waitForRoom && changesInFlight >= MAX_CHANGES_IN_FLIGHT) {
+                waited = true;
+                belowLimit.await();
+            }
+            changesInFlight++;
+            if (waited) {
+                LOG.debug("Too many local changes in flight. Waited {} ms",
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - waitStart));
+            }
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            changesInFlight++;
+        } finally {
+            inFlightLock.unlock();
+        }
+    }
+
+    private void release() {
+        inFlightLock.lock();
+        try {
+            changesInFlight--;
+            belowLimit.signal();
+        } finally {
+            inFlightLock.unlock();
+        }
+    }
+
+    /**
+     * Merges the new event into the pending change.
+     *
+     * @return net change type, or null if the changes cancel each other
+     */
+    private static LocalFolderChangeType merge(final LocalFolderChangeType previous,
+                                               final LocalFolderChangeType next) {
+        switch (previous) {
+            case CREATE:
+                return next == LocalFolderChangeType.DELETE ? null : LocalFolderChangeType.CREATE;
+            case MODIFY:
+                return next == LocalFolderChangeType.DELETE ? LocalFolderChangeType.DELETE
+                        : LocalFolderChangeType.MODIFY;
+            case DELETE:
+                return next == LocalFolderChangeType.CREATE ? LocalFolderChangeType.MODIFY : next;
+            default:
+                return next;
+        }
+    }
+
+    private PendingChange newPendingChange(final Path path, final LocalFolderChangeType changeType) {
+        return new PendingChange(path, changeType, path.toFile().length(), wheel.currentTick() + waitTicks);
+    }
+
+    /**
+     * Called by the wheel when the wait time of the change is over. The change
+     * that was replaced by later event is ignored, as its own wait is running.
+     */
+    private void onQuiet(final PendingChange pending) {
+        if (pendingChanges.get(pending.path) != pending) {
+            return;
+        }
+
+        if (pending.changeType != LocalFolderChangeType.DELETE && pending.path.toFile().isFile()
+                && pending.path.toFile().length() != pending.size) {
+            final PendingChange waitMore = newPendingChange(pending.path, pending.changeType);
+            if (pendingChanges.replace(pending.path, pending, waitMore)) {
+                LOG.trace("File is not ready yet. Size differs ({})", () -> pending.path);
+                wheel.schedule(waitMore, waitMore.dueTick);
+            }
+        } else if (pendingChanges.remove(pending.path, pending)) {
+            dispatch(new LocalFolderData(pending.path, pending.changeType));
+        }
+    }
+
+    /**
+     * Passes the change to the handler. Room held by the change is released
+     * when the handler is done.
+     */
+    private void dispatch(final LocalFolderData change) {
+        dispatchExecutor.execute(() -> {
+            try {
+                changeHandler.accept(change);
+            } catch (final RuntimeException ex) {
+                LOG.error("Failed to process local change " + change, ex);
+            } finally {
+                release();
+            }
+        });
+    }
+
+    private static class PendingChange {
+        private final Path path;
+        private final LocalFolderChangeType changeType;
+        private final long size;
+        private final long dueTick;
+
+        PendingChange(final Path path, final LocalFolderChangeType changeType,
+                      final long size, final long dueTick) {
+            this.path = path;
+            this.changeType = changeType;
+            this.size = size;
+            this.dueTick = dueTick;
+        }
+
+        @Override
+        public String toString() {
+            return changeType + " " + path;
+        }
+    }
+
+}
@@ -15,9 +15,12 @@
 package com.yet.dsync.service;
 
 import com.yet.dsync.dao.ConfigDao;
+import com.yet.dsync.dao.MetadataDao;
 import com.yet.dsync.exception.DSyncClientException;
 import com.yet.dsync.util.Config;
+import com.yet.dsync.util.ParallelTreeWalker;
 import com.yet.dsync.util.PathUtil;
+import com.yet.dsync.watcher.WatcherBackendType;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.LogManager;
@@ -37,6 +40,7 @@ public class LocalFolderService {
     private static final Logger LOG = LogManager.getLogger(LocalFolderService.class);
 
     private final ConfigDao configDao;
+    private final MetadataDao metadataDao;
     private final GlobalOperationsTracker globalOperationsTracker;
 
     private final Lock syncLock = new ReentrantLock(true);
@@ -44,8 +48,10 @@ public class LocalFolderService {
     private File localDir;
 
     public LocalFolderService(final ConfigDao configDao,
+                              final MetadataDao metadataDao,
                               final GlobalOperationsTracker globalOperationsTracker) {
         this.configDao = configDao;
+        this.metadataDao = metadataDao;
         this.globalOperationsTracker = globalOperationsTracker;
     }
 
@@ -132,16 +138,51 @@ public class LocalFolderService {
         }
     }
 
+    public File getLocalDir() {
+        return localDir;
+    }
+
     public File buildFileObject(final String path) {
         return new File(localDir.getAbsolutePath() + path);
     }
 
+    /**
+     * Builds the file in the temporary folder, where the revision of the
+     * file is downloaded before it is moved into place. Parts left from other
+     * revisions of the same file, or of other download mode, are removed,
+     * as they can't be resumed.
+     */
+    public File buildTempFile(final String id, final String rev, final String extension) {
+        final File tempDir = new File(localDir, Config.TEMP_DIR_NAME);
+        if (!tempDir.exists() && !tempDir.mkdirs()) {
+            throw new DSyncClientException("Failed in creating directories at " + tempDir.getAbsolutePath());
+        }
+
+        final String prefix = id.replace(':', '_') + "-";
+        final String fileName = prefix + rev + extension;
+
+        final File[] staleFiles = tempDir.listFiles(
+            (dir, name) -> name.startsWith(prefix) && !name.equals(fileName));
+        if (staleFiles != null) {
+            for (final File staleFile : staleFiles) {
+                if (!staleFile.delete()) {
+                    LOG.warn("Failed to delete stale temporary file: {}", () -> staleFile.getAbsolutePath());
+                }
+            }
+        }
+
+        return new File(tempDir, fileName);
+    }
+
     public String extractDropboxPath(final Path path) {
         return PathUtil.extractDropboxPath(localDir, path);
     }
 
-    public Runnable createFolderWatchingThread(final LocalFolderChange changeListener) {
-        return new LocalFolderWatching(localDir.getAbsolutePath(), changeListener, globalOperationsTracker);
+    public Runnable createFolderWatchingThread(final LocalFolderChange changeListener,
+                                               final WatcherBackendType watcherBackendType,
+                                               final ParallelTreeWalker treeWalker) {
+        return new LocalFolderWatching(localDir.getAbsolutePath(), changeListener, globalOperationsTracker,
+                metadataDao, watcherBackendType.create(treeWalker), treeWalker);
     }
 
 }
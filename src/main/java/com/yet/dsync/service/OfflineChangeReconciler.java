@@ -0,0 +1,429 @@
+/*
+ * Copyright (c) 2017 Yuriy Tkach
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+
+package com.yet.dsync.service;
+
+import com.dropbox.core.v2.files.ListFolderResult;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.yet.dsync.dao.ConfigDao;
+import com.yet.dsync.dao.MetadataDao;
+import com.yet.dsync.dto.DropboxChangeType;
+import com.yet.dsync.dto.DropboxFileData;
+import com.yet.dsync.dto.LocalFolderChangeType;
+import com.yet.dsync.dto.LocalFolderData;
+import com.yet.dsync.exception.DSyncClientException;
+import com.yet.dsync.util.Config;
+import com.yet.dsync.util.DropboxUtil;
+import com.yet.dsync.util.ParallelTreeWalker;
+import com.yet.dsync.util.PathUtil;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Finds changes that were made in the local folder while the client was
+ * stopped. Changes made in Dropbox meanwhile are fetched first from the
+ * saved cursor, so local ones are compared with the current Dropbox state
+ * and don't overwrite it. Changed entries become not loaded, and local
+ * changes of them are conflicts. The local tree is walked in parallel, and entries of each
+ * directory are compared with the loaded metadata of that directory, so only
+ * one directory listing per walking thread is kept in memory:
+ * <ul>
+ * <li>entry without metadata is created</li>
+ * <li>file of other size than in metadata, or modified after the client was
+ * last seen running, is modified</li>
+ * <li>loaded metadata without entry is deleted</li>
+ * <li>file that is not loaded yet, as it was changed in Dropbox, but was
+ * also modified locally to other content, is a conflict. It is renamed to a
+ * conflicted copy, which is uploaded, and the Dropbox version is downloaded
+ * to the original path</li>
+ * </ul>
+ *
+ * <p>Entries deleted in Dropbox keep their metadata during the walk. If
+ * nothing under the deleted entry was changed locally, it is deleted locally
+ * afterwards. Otherwise the local version wins, and the whole entry is
+ * uploaded again. Cursor is saved when the deletes are applied, so they are
+ * fetched again if the client stops before that.
+ *
+ * <p>Local folder without any entries, while loaded metadata has some, is
+ * likely not mounted. It is not reconciled, as all its entries would be
+ * deleted in Dropbox.
+ *
+ * <p>Changes are passed to the upload service as they are found, and its
+ * queues order them. Files that are only touched are skipped by the upload
+ * service after the content hash comparison.
+ *
+ * <p>Time when the client was last seen running is saved periodically. If it
+ * is not saved yet, modification times are not compared.
+ */
+public class OfflineChangeReconciler {
+
+    private static final Logger LOG = LogManager.getLogger(OfflineChangeReconciler.class);
+
+    private static final long RUNNING_MARK_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private static final DateTimeFormatter CONFLICT_DATE_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH-mm-ss", Locale.ENGLISH);
+
+    private final ConfigDao configDao;
+    private final MetadataDao metadataDao;
+    private final LocalFolderService localFolderService;
+    private final ContentHasher contentHasher;
+    private final ParallelTreeWalker treeWalker;
+    private final DropboxListing listing;
+    private final DropboxChange remoteChangeListener;
+    private final Consumer<LocalFolderData> changeConsumer;
+
+    /* Entries deleted in Dropbox while the client was stopped, by lower path */
+    private final Map<String, DropboxFileData> remoteDeletes = new ConcurrentHashMap<>();
+
+    /* Local paths of the remote deletes, under which local changes were found */
+    private final Map<String, Path> keptRoots = new ConcurrentHashMap<>();
+
+    private final LongAdder created = new LongAdder();
+    private final LongAdder modified = new LongAdder();
+    private final LongAdder deleted = new LongAdder();
+    private final LongAdder conflicts = new LongAdder();
+
+    private long lastRunningMillis;
+
+    public OfflineChangeReconciler(final ConfigDao configDao,
+                                   final MetadataDao metadataDao,
+                                   final LocalFolderService localFolderService,
+                                   final ContentHasher contentHasher,
+                                   final ParallelTreeWalker treeWalker,
+                                   final DropboxListing listing,
+                                   final DropboxChange remoteChangeListener,
+                                   final Consumer<LocalFolderData> changeConsumer) {
+        this.configDao = configDao;
+        this.metadataDao = metadataDao;
+        this.localFolderService = localFolderService;
+        this.contentHasher = contentHasher;
+        this.treeWalker = treeWalker;
+        this.listing = listing;
+        this.remoteChangeListener = remoteChangeListener;
+        this.changeConsumer = changeConsumer;
+    }
+
+    /**
+     * Fetches changes made in Dropbox, walks the local folder and passes the
+     * found changes on. Returns when the walk is finished, while the changes
+     * can still be processed.
+     */
+    public void reconcile() {
+        final Path localDir = localFolderService.getLocalDir().toPath();
+        checkLocalDirMounted(localDir);
+
+        final String cursor = fetchRemoteChanges();
+
+        final String lastRunning = configDao.read(Config.LAST_RUNNING);
+        if (StringUtils.isBlank(lastRunning)) {
+            LOG.info("Time of the last run is unknown. Local files are compared only by size");
+            lastRunningMillis = Long.MAX_VALUE;
+        } else {
+            lastRunningMillis = Long.parseLong(lastRunning);
+        }
+
+        LOG.info("Looking for local changes made while the client was stopped");
+
+        final ParallelTreeWalker.WalkStats stats = treeWalker.walk(localDir, createVisitor());
+
+        LOG.info("Scanned {}. Found {} created, {} modified, {} deleted and {} conflicted",
+                stats, created.sum(), modified.sum(), deleted.sum(), conflicts.sum());
+
+        applyRemoteDeletes();
+        configDao.write(Config.CURSOR, cursor);
+    }
+
+    private ParallelTreeWalker.Visitor createVisitor() {
+        return new ParallelTreeWalker.Visitor() {
+            @Override
+            public boolean preVisitDirectory(final Path dir) {
+                return !PathUtil.isTempPath(localFolderService.extractDropboxPath(dir));
+            }
+
+            @Override
+            public void postVisitDirectory(final Path dir, final Map<Path, BasicFileAttributes> entries) {
+                compareDirectory(dir, entries);
+            }
+        };
+    }
+
+    private void checkLocalDirMounted(final Path localDir) {
+        final String[] localEntries = localDir.toFile().list();
+        if ((localEntries == null || localEntries.length == 0)
+                && !metadataDao.readLoadedChildren(localFolderService.extractDropboxPath(localDir)
+                        .toLowerCase(Locale.getDefault())).isEmpty()) {
+            throw new DSyncClientException("Local folder " + localDir + " is empty, while synced entries are"
+                    + " expected there. It may be not mounted. Mount it, or reset the configuration to sync"
+                    + " it again");
+        }
+    }
+
+    /**
+     * Pages through Dropbox changes since the saved cursor. Deletes are kept
+     * for later, other changes are applied to metadata right away. Delete
+     * followed by the new entry of the same path is applied before it.
+     *
+     * @return cursor after the last page
+     */
+    private String fetchRemoteChanges() {
+        final Map<String, DropboxFileData> deletes = new LinkedHashMap<>();
+
+        String cursor = configDao.read(Config.CURSOR);
+        ListFolderResult listFolderResult;
+        do {
+            listFolderResult = listing.listFolderContinue(cursor);
+            cursor = listFolderResult.getCursor();
+
+            final Set<DropboxFileData> changes = new LinkedHashSet<>();
+            listFolderResult.getEntries().stream().map(DropboxUtil::convertMetadata).forEach(fileData -> {
+                if (DropboxChangeType.DELETE == fileData.getChangeType()) {
+                    deletes.put(fileData.getPathLower(), fileData);
+                } else {
+                    final DropboxFileData replacedDelete = deletes.remove(fileData.getPathLower());
+                    if (replacedDelete != null) {
+                        changes.add(replacedDelete);
+                    }
+                    changes.add(fileData);
+                }
+            });
+            metadataDao.upsert(changes);
+        } while (listFolderResult.getHasMore());
+
+        remoteDeletes.putAll(deletes);
+        LOG.info("Fetched changes made in Dropbox while the client was stopped. {} entries were deleted there",
+                deletes.size());
+        return cursor;
+    }
+
+    /**
+     * Deletes locally the entries deleted in Dropbox. Entry that has local
+     * changes under it is uploaded again instead, together with all entries
+     * under it, so deletes under it are dropped.
+     */
+    private void applyRemoteDeletes() {
+        for (final Map.Entry<String, Path> keptRoot : keptRoots.entrySet()) {
+            LOG.info("{} was deleted in Dropbox, but changed locally. Local version is uploaded again",
+                    keptRoot.getValue());
+            remoteDeletes.keySet().removeIf(pathLower -> isSameOrUnder(pathLower, keptRoot.getKey()));
+            metadataDao.deleteTreeByLowerPath(keptRoot.getKey());
+        }
+
+        for (final Path keptRootPath : keptRoots.values()) {
+            final LocalFolderData change = new LocalFolderData(keptRootPath, LocalFolderChangeType.CREATE);
+            changeConsumer.accept(change);
+            if (change.isDirectory()) {
+                treeWalker.walk(keptRootPath, createVisitor());
+            }
+        }
+
+        remoteDeletes.values().forEach(fileData -> remoteChangeListener.processChange(
+                Collections.singleton(fileData)));
+        remoteDeletes.clear();
+        keptRoots.clear();
+    }
+
+    /**
+     * @return lower path of the topmost entry deleted in Dropbox, that is
+     *         the path or its parent, or null if there is none
+     */
+    private String findDeletedRoot(final String pathLower) {
+        if (remoteDeletes.isEmpty()) {
+            return null;
+        }
+        String root = remoteDeletes.containsKey(pathLower) ? pathLower : null;
+        for (int index = pathLower.lastIndexOf('/'); index > 0; index = pathLower.lastIndexOf('/', index - 1)) {
+            final String parent = pathLower.substring(0, index);
+            if (remoteDeletes.containsKey(parent)) {
+                root = parent;
+            }
+        }
+        return root;
+    }
+
+    /**
+     * Remembers that the local version of the deleted entry is kept. Local
+     * path of the entry is found from the changed path under it.
+     */
+    private void keepDeletedRoot(final String rootLower, final String pathLower, final Path path) {
+        Path rootPath = path;
+        int index = pathLower.lastIndexOf('/');
+        while (index >= rootLower.length()) {
+            rootPath = rootPath.getParent();
+            index = pathLower.lastIndexOf('/', index - 1);
+        }
+        keptRoots.putIfAbsent(rootLower, rootPath);
+    }
+
+    private static boolean isSameOrUnder(final String pathLower, final String rootLower) {
+        return pathLower.equals(rootLower) || pathLower.startsWith(rootLower + "/");
+    }
+
+    /**
+     * Saves the current time as the time when the client was running, now
+     * and then periodically.
+     */
+    public void startRunningMark() {
+        final ThreadFactory namedThreadFactory = new ThreadFactoryBuilder()
+                .setNameFormat("running-mark-%d").setDaemon(true).build();
+        final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(namedThreadFactory);
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                configDao.write(Config.LAST_RUNNING, String.valueOf(System.currentTimeMillis()));
+            } catch (final DSyncClientException ex) {
+                LOG.warn("Failed to save running time", ex);
+            }
+        }, 0, RUNNING_MARK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private void compareDirectory(final Path dir, final Map<Path, BasicFileAttributes> entries) {
+        final Map<String, Path> entriesByName = new HashMap<>();
+        entries.keySet().forEach(path ->
+                entriesByName.put(path.getFileName().toString().toLowerCase(Locale.getDefault()), path));
+
+        final String dirPathLower = localFolderService.extractDropboxPath(dir).toLowerCase(Locale.getDefault());
+
+        final List<LocalFolderData> changes = new ArrayList<>();
+        for (final DropboxFileData fileData : metadataDao.readLoadedChildren(dirPathLower)) {
+            final String name = fileData.getPathLower().substring(dirPathLower.length() + 1);
+            final Path path = entriesByName.remove(name);
+            final String deletedRoot = findDeletedRoot(fileData.getPathLower());
+            if (path == null) {
+                if (deletedRoot == null) {
+                    changes.add(new LocalFolderData(dir.resolve(name), LocalFolderChangeType.DELETE));
+                    deleted.increment();
+                }
+            } else if (fileData.isFile() && isModified(fileData, entries.get(path))) {
+                if (deletedRoot == null) {
+                    changes.add(new LocalFolderData(path, LocalFolderChangeType.MODIFY));
+                    modified.increment();
+                } else {
+                    keepDeletedRoot(deletedRoot, fileData.getPathLower(), path);
+                }
+            }
+        }
+
+        for (final Map.Entry<String, Path> entry : entriesByName.entrySet()) {
+            final Path path = entry.getValue();
+            final String pathLower = dirPathLower + "/" + entry.getKey();
+            final String deletedRoot = findDeletedRoot(pathLower);
+            final DropboxFileData notLoaded = metadataDao.readByLowerPath(pathLower);
+            if (deletedRoot != null) {
+                if (notLoaded == null || isModifiedAfterLastRun(entries.get(path))) {
+                    keepDeletedRoot(deletedRoot, pathLower, path);
+                }
+            } else if (notLoaded == null) {
+                changes.add(new LocalFolderData(path, LocalFolderChangeType.CREATE));
+                created.increment();
+            } else if (isConflict(notLoaded, path, entries.get(path))) {
+                final Path conflictedCopy = moveToConflictedCopy(path);
+                if (conflictedCopy != null) {
+                    changes.add(new LocalFolderData(conflictedCopy, LocalFolderChangeType.CREATE));
+                    conflicts.increment();
+                }
+            }
+        }
+
+        changes.forEach(change -> {
+            LOG.debug("Offline change {}", change);
+            changeConsumer.accept(change);
+        });
+    }
+
+    private boolean isModified(final DropboxFileData fileData, final BasicFileAttributes attrs) {
+        return !attrs.isDirectory() && (fileData.getSize() != attrs.size() || isModifiedAfterLastRun(attrs));
+    }
+
+    private boolean isModifiedAfterLastRun(final BasicFileAttributes attrs) {
+        return !attrs.isDirectory() && attrs.lastModifiedTime().toMillis() > lastRunningMillis;
+    }
+
+    /**
+     * Checks if the local file that waits for download of the newer Dropbox
+     * version was modified locally after the client was last running. Files
+     * of the same content are not conflicts, they are marked loaded before
+     * the download.
+     */
+    private boolean isConflict(final DropboxFileData fileData, final Path path, final BasicFileAttributes attrs) {
+        if (!fileData.isFile() || attrs.isDirectory() || attrs.lastModifiedTime().toMillis() <= lastRunningMillis) {
+            return false;
+        }
+        if (fileData.getContentHash() == null || fileData.getSize() != attrs.size()) {
+            return true;
+        }
+        try {
+            return !fileData.getContentHash().equals(contentHasher.hash(path));
+        } catch (final DSyncClientException ex) {
+            LOG.warn("Failed to hash {}: {}", path, ex.getMessage());
+            return true;
+        }
+    }
+
+    /**
+     * Renames the file to a conflicted copy next to it, so the Dropbox
+     * version can be downloaded to its path.
+     *
+     * @return path of the copy, or null if the file could not be renamed
+     */
+    private Path moveToConflictedCopy(final Path path) {
+        final String fileName = path.getFileName().toString();
+        final int extensionIndex = fileName.lastIndexOf('.');
+        final String baseName = extensionIndex > 0 ? fileName.substring(0, extensionIndex) : fileName;
+        final String extension = extensionIndex > 0 ? fileName.substring(extensionIndex) : "";
+        final String suffix = " (conflicted copy " + LocalDateTime.now().format(CONFLICT_DATE_FORMAT);
+
+        for (int copy = 1; ; copy++) {
+            final Path target = path.resolveSibling(baseName + suffix
+                    + (copy > 1 ? " " + copy : "") + ")" + extension);
+            try {
+                Files.move(path, target);
+                LOG.info("Local and Dropbox versions of {} were both changed. Local one is kept as {}",
+                        path, target.getFileName());
+                return target;
+            } catch (final FileAlreadyExistsException ex) {
+                LOG.trace("Conflicted copy {} already exists", () -> target);
+            } catch (final IOException ex) {
+                LOG.warn("Failed to keep local version of {} as conflicted copy: {}", path, ex.getMessage());
+                return null;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2017 Yuriy Tkach
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.yet.dsync.service;
+
+import com.dropbox.core.v2.files.FolderMetadata;
+import com.dropbox.core.v2.files.ListFolderResult;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.yet.dsync.dao.ConfigDao;
+import com.yet.dsync.dto.DropboxFileData;
+import com.yet.dsync.exception.DSyncClientException;
+import com.yet.dsync.util.Config;
+import com.yet.dsync.util.DropboxUtil;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Initial sync that partitions the Dropbox namespace by top-level folders.
+ * The root is listed non-recursively, then each top-level folder is listed
+ * recursively on its own worker, so big accounts are not limited by a single
+ * listing cursor. Pages from all workers are passed to the change listener,
+ * therefore it must be thread safe.
+ *
+ * <p>Partition cursors are not persisted. The global cursor is taken before
+ * the listing starts and saved only when all partitions are done. Changes
+ * made on Dropbox during the listing are picked up by polling from that
+ * cursor. If the client is stopped in the middle, the listing is started
+ * from scratch on the next run.
+ */
+public class PartitionedInitialSync implements Runnable {
+
+    private static final Logger LOG = LogManager.getLogger(PartitionedInitialSync.class);
+
+    private final DropboxListing listing;
+    private final ConfigDao configDao;
+    private final DropboxChange changeListener;
+    private final int workerThreads;
+
+    private final AtomicLong syncedEntries = new AtomicLong();
+
+    public PartitionedInitialSync(final DropboxListing listing,
+                                  final ConfigDao configDao,
+                                  final DropboxChange changeListener,
+                                  final int workerThreads) {
+        this.listing = listing;
+        this.configDao = configDao;
+        this.changeListener = changeListener;
+        this.workerThreads = workerThreads;
+    }
+
+    @Override
+    public void run() {
+        LOG.info("Started partitioned initial sync with {} workers", workerThreads);
+
+        final long startNanos = System.nanoTime();
+        syncedEntries.set(0);
+
+        final String globalCursor = listing.retrieveLatestCursor();
+
+        final List<String> topFolders = listRoot();
+        LOG.debug("Found {} top-level folders", () -> topFolders.size());
+
+        final ThreadFactory namedThreadFactory = new ThreadFactoryBuilder()
+                .setNameFormat("init-sync-list-%d").build();
+        final ExecutorService executorService = Executors.newFixedThreadPool(workerThreads, namedThreadFactory);
+
+        try {
+            final CompletableFuture<?>[] partitions = topFolders.stream()
+                    .map(folder -> CompletableFuture.runAsync(() -> listPartition(folder), executorService))
+                    .toArray(CompletableFuture[]::new);
+
+            CompletableFuture.allOf(partitions).join();
+
+        } catch (final CompletionException ex) {
+            throw new DSyncClientException("Failed in partitioned initial sync", ex.getCause());
+        } finally {
+            executorService.shutdownNow();
+        }
+
+        configDao.write(Config.CURSOR, globalCursor);
+
+        final long elapsedMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        LOG.info("Initial sync done: {} entries at {} rows/sec", syncedEntries.get(),
+                syncedEntries.get() * TimeUnit.SECONDS.toMillis(1) / elapsedMillis);
+    }
+
+    /**
+     * Lists root folder non-recursively. All its entries are persisted right
+     * away.
+     *
+     * @return lower paths of the top-level folders
+     */
+    private List<String> listRoot() {
+        final List<String> topFolders = new LinkedList<>();
+
+        ListFolderResult listFolderResult = listing.listFolder(StringUtils.EMPTY, false);
+        while (true) {
+            listFolderResult.getEntries().stream()
+                    .filter(metadata -> metadata instanceof FolderMetadata)
+                    .forEach(metadata -> topFolders.add(metadata.getPathLower()));
+
+            persistPage(listFolderResult);
+
+            if (!listFolderResult.getHasMore()) {
+                break;
+            }
+            listFolderResult = listing.listFolderContinue(listFolderResult.getCursor());
+        }
+
+        return topFolders;
+    }
+
+    private void listPartition(final String folderPathLower) {
+        LOG.debug("Listing partition {}", () -> folderPathLower);
+
+        ListFolderResult listFolderResult = listing.listFolder(folderPathLower, true);
+        while (true) {
+            persistPage(listFolderResult);
+
+            if (!listFolderResult.getHasMore()) {
+                break;
+            }
+            listFolderResult = listing.listFolderContinue(listFolderResult.getCursor());
+        }
+
+        LOG.debug("Partition {} done", () -> folderPathLower);
+    }
+
+    private void persistPage(final ListFolderResult listFolderResult) {
+        final Set<DropboxFileData> fileDataSet = listFolderResult.getEntries().stream()
+                .map(DropboxUtil::convertMetadata)
+                .collect(Collectors.toCollection(LinkedHashSet::new));
+
+        changeListener.processChange(fileDataSet);
+
+        final long total = syncedEntries.addAndGet(fileDataSet.size());
+        LOG.debug("Initial sync: {} entries written", total);
+    }
+
+}
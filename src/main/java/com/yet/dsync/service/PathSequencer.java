@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2017 Yuriy Tkach
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+
+package com.yet.dsync.service;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps the order of changes that depend on each other, while unrelated
+ * changes run in parallel. Change depends on all earlier changes that are
+ * not completed yet of the same path, of its parent folders and of the
+ * entries under it. So the folder is created before its files are uploaded,
+ * files are processed before their folder is deleted, and a path that is
+ * deleted and created again is processed in that order.
+ *
+ * <p>Each change waits only for the last pending change of every related
+ * path, as that one waits for the earlier ones. Delete doesn't wait for
+ * deletes of parent folders and of entries under it, as they lead to the
+ * same result in any order. It waits for the last other change of those
+ * paths instead, so deletes of a removed folder and of its contents can be
+ * sent together.
+ *
+ * <p>Change that has nothing to wait for is ready right away. Others are
+ * held here and returned as ready when the changes they wait for complete.
+ * Number of held changes is limited, and the producer waits for room when
+ * it is reached.
+ */
+class PathSequencer<T> {
+
+    private final int maxWaiting;
+
+    private final Lock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+
+    /* Changes that are waiting, queued or being processed, by path in the order they came */
+    private final NavigableMap<String, Deque<Entry<T>>> pending = new TreeMap<>();
+
+    private int waiting;
+
+    PathSequencer(final int maxWaiting) {
+        this.maxWaiting = maxWaiting;
+    }
+
+    /**
+     * Adds the change of the path.
+     *
+     * @param delete
+     *            whether the change deletes the path
+     * @return true if the change is ready to be processed now, false if it is
+     *         held until the changes it depends on are completed
+     */
+    boolean submit(final String pathLower, final T changeData, final boolean delete) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (waiting >= maxWaiting) {
+                notFull.await();
+            }
+
+            final Entry<T> entry = new Entry<>(changeData, delete);
+            entry.dependOn(pending.get(pathLower));
+            for (int index = pathLower.lastIndexOf('/'); index > 0; index = pathLower.lastIndexOf('/', index - 1)) {
+                entry.dependOnRelated(pending.get(pathLower.substring(0, index)));
+            }
+            // '0' follows '/', so the range holds everything under the path
+            for (final Deque<Entry<T>> children : pending.subMap(pathLower + "/", pathLower + "0").values()) {
+                entry.dependOnRelated(children);
+            }
+
+            pending.computeIfAbsent(pathLower, key -> new ArrayDeque<>()).addLast(entry);
+            if (entry.blockers > 0) {
+                waiting++;
+                return false;
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Completes the change of the path that was processed. It is always the
+     * earliest pending change of the path, as the later ones wait for it.
+     *
+     * @return changes that became ready
+     */
+    List<T> complete(final String pathLower) {
+        lock.lock();
+        try {
+            final Deque<Entry<T>> entries = pending.get(pathLower);
+            if (entries == null) {
+                return Collections.emptyList();
+            }
+            final Entry<T> entry = entries.pollFirst();
+            if (entries.isEmpty()) {
+                pending.remove(pathLower);
+            }
+
+            final List<T> ready = new ArrayList<>();
+            for (final Entry<T> dependent : entry.dependents) {
+                dependent.blockers--;
+                if (dependent.blockers == 0) {
+                    ready.add(dependent.changeData);
+                    waiting--;
+                }
+            }
+            if (!ready.isEmpty()) {
+                notFull.signalAll();
+            }
+            return ready;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getWaiting() {
+        lock.lock();
+        try {
+            return waiting;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static class Entry<T> {
+        private final T changeData;
+        private final boolean delete;
+        private final List<Entry<T>> dependents = new ArrayList<>(0);
+        private int blockers;
+
+        Entry(final T changeData, final boolean delete) {
+            this.changeData = changeData;
+            this.delete = delete;
+        }
+
+        void dependOn(final Deque<Entry<T>> entries) {
+            if (entries != null && !entries.isEmpty()) {
+                dependOn(entries.peekLast());
+            }
+        }
+
+        /**
+         * Depends on the last change of the parent or child path. Delete
+         * skips the deletes at the end, as the change before them is still
+         * pending and they wait only for it.
+         */
+        void dependOnRelated(final Deque<Entry<T>> entries) {
+            if (entries == null) {
+                return;
+            }
+            if (!delete) {
+                dependOn(entries);
+                return;
+            }
+            final Iterator<Entry<T>> iterator = entries.descendingIterator();
+            while (iterator.hasNext()) {
+                final Entry<T> previous = iterator.next();
+                if (!previous.delete) {
+                    dependOn(previous);
+                    return;
+                }
+            }
+        }
+
+        private void dependOn(final Entry<T> previous) {
+            previous.dependents.add(this);
+            blockers++;
+        }
+    }
+
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2017 Yuriy Tkach
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+
+package com.yet.dsync.service;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Queue of changes with the number of workers that take from it. The number
+ * is tuned by hill climbing: once per interval the throughput is compared
+ * with the previous interval, and the number keeps moving in the same
+ * direction while the throughput grows, and turns back when it drops. When
+ * the throughput stays the same, but the changes take longer, the number goes
+ * down, as more workers only compete for the link.
+ *
+ * <p>Throughput is measured in bytes for the lane of large files, and in
+ * changes for the lane of small ones, where the time is spent on requests.
+ */
+class ProcessingLane<T> {
+
+    private static final Logger LOG = LogManager.getLogger(ProcessingLane.class);
+
+    /* Relative change of the throughput or latency that is taken as noise */
+    private static final double TOLERANCE = 0.05;
+
+    private final String name;
+    private final ProcessingQueue<T> queue;
+    private final int minWorkers;
+    private final int maxWorkers;
+    private final boolean measuredInBytes;
+
+    private volatile int workerLimit;
+
+    private final LongAdder completedChanges = new LongAdder();
+    private final LongAdder completedBytes = new LongAdder();
+    private final LongAdder processingNanos = new LongAdder();
+
+    /* Used only by the tuning thread */
+    private double lastThroughput = -1;
+    private double lastLatency;
+    private int direction = 1;
+
+    ProcessingLane(final String name, final ProcessingQueue<T> queue,
+                   final int minWorkers, final int initialWorkers, final int maxWorkers,
+                   final boolean measuredInBytes) {
+        this.name = name;
+        this.queue = queue;
+        this.minWorkers = minWorkers;
+        this.workerLimit = initialWorkers;
+        this.maxWorkers = maxWorkers;
+        this.measuredInBytes = measuredInBytes;
+    }
+
+    ProcessingQueue<T> getQueue() {
+        return queue;
+    }
+
+    int getMaxWorkers() {
+        return maxWorkers;
+    }
+
+    int getWorkerLimit() {
+        return workerLimit;
+    }
+
+    /**
+     * Workers are numbered from zero, and only those below the limit take
+     * changes.
+     */
+    boolean isWorkerEnabled(final int workerIndex) {
+        return workerIndex < workerLimit;
+    }
+
+    void recordCompleted(final long bytes, final long nanos) {
+        completedChanges.increment();
+        completedBytes.add(bytes);
+        processingNanos.add(nanos);
+    }
+
+    /**
+     * Moves the worker limit by one step, based on the changes completed
+     * since the previous call. Idle lane keeps its limit.
+     */
+    void adjust(final long intervalNanos) {
+        final long changes = completedChanges.sumThenReset();
+        final long bytes = completedBytes.sumThenReset();
+        final long nanos = processingNanos.sumThenReset();
+        if (changes == 0) {
+            lastThroughput = -1;
+            return;
+        }
+
+        final double seconds = (double) intervalNanos / TimeUnit.SECONDS.toNanos(1);
+        final double throughput = (measuredInBytes ? bytes : changes) / seconds;
+        final double latency = (double) nanos / changes;
+
+        if (lastThroughput >= 0) {
+            if (throughput < lastThroughput * (1 - TOLERANCE)) {
+                direction = -direction;
+            } else if (throughput <= lastThroughput * (1 + TOLERANCE) && latency > lastLatency * (1 + TOLERANCE)) {
+                direction = -1;
+            }
+        }
+        lastThroughput = throughput;
+        lastLatency = latency;
+
+        // More workers are useless if they have nothing to take
+        if (direction > 0 && queue.size() == 0) {
+            return;
+        }
+
+        final int limit = Math.max(minWorkers, Math.min(maxWorkers, workerLimit + direction));
+        if (limit == workerLimit) {
+            // Bound is reached, so the next step probes the other way
+            direction = -direction;
+        } else {
+            LOG.debug("{} lane: throughput {}{}/s, latency {} ms. Workers {} -> {}", name, Math.round(throughput),
+                    measuredInBytes ? " bytes" : " changes", TimeUnit.NANOSECONDS.toMillis((long) latency),
+                    workerLimit, limit);
+            workerLimit = limit;
+        }
+    }
+
+}
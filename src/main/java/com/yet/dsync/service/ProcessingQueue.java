@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2017 Yuriy Tkach
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+
+package com.yet.dsync.service;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+/**
+ * Priority queue of changes with a fixed capacity. Producer that puts a
+ * change into the full queue waits until a processing thread takes one out,
+ * so the producers slow down to the processing speed instead of filling
+ * the memory. Time that producers spent waiting is counted.
+ *
+ * <p>Change is taken only if the admission accepts it, which lets the
+ * workers reserve the resources for it while the change is still queued.
+ */
+class ProcessingQueue<T> {
+
+    private final int capacity;
+
+    private final PriorityQueue<T> queue;
+
+    private final Lock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+    private final LongAdder blockedPuts = new LongAdder();
+    private final LongAdder blockedNanos = new LongAdder();
+
+    ProcessingQueue(final int capacity, final Comparator<? super T> comparator) {
+        this.capacity = capacity;
+        this.queue = new PriorityQueue<>(comparator);
+    }
+
+    /**
+     * Puts the change, waiting for the space if the queue is full.
+     *
+     * @return time in milliseconds the producer waited
+     */
+    long put(final T changeData) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            long waitStart = 0;
+            while (queue.size() >= capacity) {
+                if (waitStart == 0) {
+                    waitStart = System.nanoTime();
+                }
+                notFull.await();
+            }
+            queue.add(changeData);
+            notEmpty.signal();
+
+            if (waitStart == 0) {
+                return 0;
+            }
+            final long waited = System.nanoTime() - waitStart;
+            blockedPuts.increment();
+            blockedNanos.add(waited);
+            return TimeUnit.NANOSECONDS.toMillis(waited);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds the change without waiting, even if the queue is full
+     */
+    void add(final T changeData) {
+        lock.lock();
+        try {
+            queue.add(changeData);
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the head of the queue, if the admission accepts it, waiting up to
+     * the timeout for the change to come. Admission is called under the queue
+     * lock, and the head is taken as soon as it returns true.
+     *
+     * @return the change, or null if no change was accepted in time
+     */
+    T poll(final Predicate<? super T> admission, final long timeoutMillis) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            long remainingNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            while (queue.isEmpty() || !admission.test(queue.peek())) {
+                if (remainingNanos <= 0) {
+                    return null;
+                }
+                remainingNanos = notEmpty.awaitNanos(remainingNanos);
+            }
+            final T changeData = queue.poll();
+            notFull.signal();
+            return changeData;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    long getBlockedPuts() {
+        return blockedPuts.sum();
+    }
+
+    long getBlockedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(blockedNanos.sum());
+    }
+
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright (c) 2017 Yuriy Tkach
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+
+package com.yet.dsync.service;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.yet.dsync.dto.DropboxFileData;
+import com.yet.dsync.exception.DSyncClientException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Downloads large files over several connections. The file is split into
+ * byte ranges, which are downloaded concurrently and written with positional
+ * writes into the file preallocated to its full size. There are several
+ * segments per connection, so a slow connection doesn't hold the whole
+ * download at its end.
+ *
+ * <p>Failed segment is requested again from the bytes it has already
+ * written. Result is accepted only when every segment received exactly its
+ * range and the content hash of the file matches the one reported by
+ * Dropbox. Otherwise the file would keep zero-filled holes of the
+ * preallocation, so it is deleted.
+ */
+public class SegmentedFileDownloader {
+
+    private static final Logger LOG = LogManager.getLogger(SegmentedFileDownloader.class);
+
+    private static final int SEGMENTS_PER_CONNECTION = 4;
+
+    private static final long MIN_SEGMENT_SIZE = 8 * 1024 * 1024;
+
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    private static final int MAX_SEGMENT_ATTEMPTS = 5;
+
+    private static final long RETRY_DELAY_MILLIS = 1000;
+
+    private final DropboxService dropboxService;
+    private final ContentHasher contentHasher;
+    private final int connections;
+
+    private final ExecutorService segmentExecutor;
+
+    public SegmentedFileDownloader(final DropboxService dropboxService,
+                                   final ContentHasher contentHasher,
+                                   final int connections) {
+        this.dropboxService = dropboxService;
+        this.contentHasher = contentHasher;
+        this.connections = connections;
+
+        final ThreadFactory namedThreadFactory = new ThreadFactoryBuilder()
+                .setNameFormat("download-segment-%d").setDaemon(true).build();
+        this.segmentExecutor = Executors.newFixedThreadPool(connections, namedThreadFactory);
+    }
+
+    /**
+     * Downloads the file into the target file, replacing its contents. Target
+     * file is deleted if the download fails or its result is not valid.
+     */
+    public void download(final DropboxFileData fileData, final File targetFile) {
+        try {
+            downloadSegments(fileData, targetFile);
+            verifyContentHash(fileData, targetFile);
+        } catch (final DSyncClientException ex) {
+            if (targetFile.exists() && !targetFile.delete()) {
+                LOG.warn("Failed to delete temporary file: {}", targetFile.getAbsolutePath());
+            }
+            throw ex;
+        }
+    }
+
+    private void downloadSegments(final DropboxFileData fileData, final File targetFile) {
+        final long size = fileData.getSize();
+        final long segmentSize = Math.max(MIN_SEGMENT_SIZE,
+            (size + connections * SEGMENTS_PER_CONNECTION - 1) / (connections * SEGMENTS_PER_CONNECTION));
+        LOG.debug("Downloading {} in segments of {} bytes over {} connections",
+            fileData.getPathDisplay(), segmentSize, connections);
+
+        try (RandomAccessFile file = new RandomAccessFile(targetFile, "rw")) {
+            file.setLength(size);
+            final FileChannel channel = file.getChannel();
+
+            final AtomicBoolean failed = new AtomicBoolean();
+            final List<CompletableFuture<Long>> segments = new ArrayList<>();
+            final List<Long> segmentLengths = new ArrayList<>();
+            for (long offset = 0; offset < size; offset += segmentSize) {
+                final long segmentOffset = offset;
+                final long segmentLength = Math.min(segmentSize, size - offset);
+                segmentLengths.add(segmentLength);
+                segments.add(CompletableFuture.supplyAsync(
+                    () -> downloadSegment(fileData, channel, segmentOffset, segmentLength, failed),
+                    segmentExecutor));
+            }
+
+            try {
+                CompletableFuture.allOf(segments.toArray(new CompletableFuture<?>[segments.size()])).join();
+            } catch (final CompletionException ex) {
+                // Other segments stop at their next attempt, the file must stay open till then
+                failed.set(true);
+                segments.forEach(segment -> segment.handle((result, error) -> null).join());
+                throw new DSyncClientException("Failed to download " + fileData.getPathDisplay(), ex.getCause());
+            }
+
+            for (int i = 0; i < segments.size(); i++) {
+                final long written = segments.get(i).join();
+                if (written != segmentLengths.get(i)) {
+                    throw new DSyncClientException("Segment " + i + " of " + fileData.getPathDisplay()
+                            + " has " + written + " bytes instead of " + segmentLengths.get(i));
+                }
+            }
+        } catch (final IOException ex) {
+            throw new DSyncClientException(ex);
+        }
+    }
+
+    private void verifyContentHash(final DropboxFileData fileData, final File targetFile) {
+        if (fileData.getContentHash() == null) {
+            LOG.debug("No content hash to verify download of {}", () -> fileData.getPathDisplay());
+            return;
+        }
+        final String hash = contentHasher.hash(targetFile.toPath());
+        if (!fileData.getContentHash().equals(hash)) {
+            throw new DSyncClientException("Content hash of downloaded " + fileData.getPathDisplay()
+                    + " doesn't match Dropbox: " + hash + " instead of " + fileData.getContentHash());
+        }
+    }
+
+    /**
+     * Downloads the segment, retrying from the bytes already written.
+     *
+     * @return number of bytes written for the segment
+     */
+    private long downloadSegment(final DropboxFileData fileData, final FileChannel channel,
+                                 final long offset, final long length, final AtomicBoolean failed) {
+        final SegmentOutputStream segmentStream = new SegmentOutputStream(channel, offset, length);
+        int attempt = 1;
+        while (segmentStream.getWritten() < length) {
+            if (failed.get()) {
+                throw new CompletionException(new IOException("Download of other segment failed"));
+            }
+            final long written = segmentStream.getWritten();
+            try (OutputStream out = new BufferedOutputStream(segmentStream, WRITE_BUFFER_SIZE)) {
+                dropboxService.downloadFileRange(fileData.getPathDisplay(), fileData.getRev(),
+                    offset + written, length - written, out);
+            } catch (final IOException | DSyncClientException ex) {
+                if (attempt >= MAX_SEGMENT_ATTEMPTS) {
+                    throw new CompletionException(ex);
+                }
+                LOG.warn("Failed to download segment at offset {} of {} (attempt {}): {}",
+                    offset + segmentStream.getWritten(), fileData.getPathDisplay(), attempt, ex.getMessage());
+                sleepBeforeRetry(attempt);
+                attempt++;
+                continue;
+            }
+
+            if (segmentStream.getWritten() == written) {
+                throw new CompletionException(new IOException("No data received for segment at offset "
+                        + (offset + written) + " of " + fileData.getPathDisplay()));
+            }
+        }
+        return segmentStream.getWritten();
+    }
+
+    private void sleepBeforeRetry(final int attempt) {
+        try {
+            TimeUnit.MILLISECONDS.sleep(RETRY_DELAY_MILLIS * attempt);
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new CompletionException(ex);
+        }
+    }
+
+    /**
+     * Writes received bytes at their position in the file, and fails if the
+     * server sends more than the range of the segment. Closing the stream
+     * doesn't close the channel, which is shared by all segments.
+     */
+    private static class SegmentOutputStream extends OutputStream {
+        private final FileChannel channel;
+        private final long offset;
+        private final long length;
+
+        private long written;
+
+        SegmentOutputStream(final FileChannel channel, final long offset, final long length) {
+            this.channel = channel;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        long getWritten() {
+            return written;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] bytes, final int off, final int len) throws IOException {
+            if (written + len > length) {
+                throw new IOException("Received more than " + length + " bytes for segment at offset " + offset);
+            }
+            final ByteBuffer buffer = ByteBuffer.wrap(bytes, off, len);
+            while (buffer.hasRemaining()) {
+                written += channel.write(buffer, offset + written);
+            }
+        }
+    }
+
+}
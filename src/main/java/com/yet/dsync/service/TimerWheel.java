@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2017 Yuriy Tkach
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+
+package com.yet.dsync.service;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Hashed timer wheel with a single sweeping thread. Items are put into the
+ * bucket of the tick when they are due, and the handler is called for them
+ * on the sweeping thread once that tick has passed. Items that are due in
+ * more ticks than the wheel size stay in their bucket for another round.
+ *
+ * <p>Wheel doesn't support cancelling. Owners keep the current item for
+ * each key and ignore items that were replaced, which is cheaper than
+ * removing them from the buckets.
+ *
+ * @param <T> type of scheduled items
+ */
+class TimerWheel<T> {
+
+    private static final Logger LOG = LogManager.getLogger(TimerWheel.class);
+
+    private final long tickMillis;
+
+    private final List<Queue<Entry<T>>> wheel;
+
+    private final Consumer<T> dueHandler;
+
+    /* Accessed only by the sweeping thread */
+    private long sweptTick;
+
+    TimerWheel(final String threadNameFormat, final long tickMillis, final int wheelSize,
+               final Consumer<T> dueHandler) {
+        this.tickMillis = tickMillis;
+        this.dueHandler = dueHandler;
+
+        this.wheel = new ArrayList<>(wheelSize);
+        for (int i = 0; i < wheelSize; i++) {
+            wheel.add(new ConcurrentLinkedQueue<>());
+        }
+        sweptTick = currentTick();
+
+        final ThreadFactory namedThreadFactory = new ThreadFactoryBuilder()
+                .setNameFormat(threadNameFormat).setDaemon(true).build();
+
+        final ScheduledExecutorService scheduledExecutorService =
+                Executors.newSingleThreadScheduledExecutor(namedThreadFactory);
+        scheduledExecutorService.scheduleAtFixedRate(this::sweep, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    long currentTick() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime()) / tickMillis;
+    }
+
+    void schedule(final T item, final long dueTick) {
+        bucket(dueTick).add(new Entry<>(item, dueTick));
+    }
+
+    private void sweep() {
+        final long now = currentTick();
+        while (sweptTick < now) {
+            sweptTick++;
+            expireBucket(sweptTick);
+        }
+    }
+
+    private void expireBucket(final long tick) {
+        final Queue<Entry<T>> bucket = bucket(tick);
+        final List<Entry<T>> notDue = new ArrayList<>();
+
+        Entry<T> entry;
+        while ((entry = bucket.poll()) != null) {
+            if (entry.dueTick > tick) {
+                notDue.add(entry);
+            } else {
+                handleDue(entry.item);
+            }
+        }
+
+        bucket.addAll(notDue);
+    }
+
+    /* Failed handler must not stop the sweeping thread */
+    private void handleDue(final T item) {
+        try {
+            dueHandler.accept(item);
+        } catch (final RuntimeException ex) {
+            LOG.error("Failed to handle timer wheel item " + item, ex);
+        }
+    }
+
+    private Queue<Entry<T>> bucket(final long tick) {
+        return wheel.get((int) Math.floorMod(tick, (long) wheel.size()));
+    }
+
+    private static class Entry<T> {
+        private final T item;
+        private final long dueTick;
+
+        Entry(final T item, final long dueTick) {
+            this.item = item;
+            this.dueTick = dueTick;
+        }
+    }
+}
@@ -15,22 +15,21 @@
 package com.yet.dsync.service;
 
 import com.yet.dsync.dao.MetadataDao;
+import com.yet.dsync.dao.UploadSessionDao;
 import com.yet.dsync.dto.DropboxFileData;
 import com.yet.dsync.dto.LocalFolderChangeType;
 import com.yet.dsync.dto.LocalFolderData;
-import com.yet.dsync.exception.DSyncClientException;
+import com.yet.dsync.dto.UploadSessionData;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.io.InputStream;
+import java.nio.file.Paths;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.util.Date;
 import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
 
 public class UploadService
         extends AbstractChangeProcessingService<LocalFolderData> {
@@ -38,52 +37,98 @@ public class UploadService
     private static final Logger LOG = LogManager.getLogger(UploadService.class);
 
     private final MetadataDao metadataDao;
+    private final UploadSessionDao uploadSessionDao;
     private final LocalFolderService localFolderService;
     private final DropboxService dropboxService;
+    private final ContentHasher contentHasher;
 
     public UploadService(final GlobalOperationsTracker globalOperationsTracker,
                          final MetadataDao metadataDao,
+                         final UploadSessionDao uploadSessionDao,
                          final LocalFolderService localFolderService,
-                         final DropboxService dropboxService) {
-        super("upload", globalOperationsTracker);
+                         final DropboxService dropboxService,
+                         final ContentHasher contentHasher,
+                         final ExecutionMode executionMode,
+                         final int virtualConcurrency) {
+        super("upload", globalOperationsTracker, executionMode, virtualConcurrency);
         this.metadataDao = metadataDao;
+        this.uploadSessionDao = uploadSessionDao;
         this.localFolderService = localFolderService;
         this.dropboxService = dropboxService;
+        this.contentHasher = contentHasher;
+    }
+
+    /**
+     * Schedules uploads that were interrupted when the client was stopped.
+     * They are resumed from the last committed chunk, unless the file was
+     * changed in the meantime. State of the removed files is dropped.
+     */
+    public void resumeInterruptedUploads() {
+        for (final UploadSessionData session : uploadSessionDao.readAll()) {
+            final LocalFolderData changeData = new LocalFolderData(Paths.get(session.getLocalPath()),
+                    LocalFolderChangeType.MODIFY);
+            if (changeData.isFile()) {
+                LOG.info("Resuming interrupted upload of {}", () -> session.getLocalPath());
+                scheduleProcessing(changeData);
+            } else {
+                uploadSessionDao.delete(session.getLocalPath());
+            }
+        }
     }
 
     @Override
     protected void processChange(final LocalFolderData changeData) {
-        uploadData(changeData);
+        startProcessing(changeData).join();
     }
 
-    @SuppressWarnings("PMD.ConfusingTernary")
-    private void uploadData(final LocalFolderData changeData) {
+    /**
+     * Uploads the change. Deletes and folder creates go to Dropbox in
+     * batches, so the worker doesn't wait for them. Their metadata is
+     * updated and the path stops being tracked when the batch is completed.
+     */
+    @Override
+    protected CompletableFuture<?> startProcessing(final LocalFolderData changeData) {
         final String dropboxPath = extractPath(changeData);
+        final String pathLower = dropboxPath.toLowerCase(Locale.getDefault());
 
-        getGlobalOperationsTracker().start(dropboxPath.toLowerCase(Locale.getDefault()));
+        getGlobalOperationsTracker().start(pathLower);
         try {
-            if (!changeData.fileExists()) {
-                deleteData(dropboxPath);
-                LOG.info("Deleted from Dropbox {}", () -> dropboxPath);
-
-            } else if (changeData.isDirectory()) {
-                if (LocalFolderChangeType.CREATE == changeData.getChangeType()) {
-                    createDirectory(dropboxPath);
-                    LOG.info("Created in Dropbox {}", () -> dropboxPath);
-                } else {
-                    LOG.info("Modify on local folder. Doing nothing for {}", () -> dropboxPath);
-                }
+            return uploadData(dropboxPath, changeData)
+                    .whenComplete((result, error) -> getGlobalOperationsTracker().stop(pathLower));
+        } catch (final RuntimeException ex) {
+            getGlobalOperationsTracker().stop(pathLower);
+            throw ex;
+        }
+    }
 
+    @SuppressWarnings("PMD.ConfusingTernary")
+    private CompletableFuture<?> uploadData(final String dropboxPath, final LocalFolderData changeData) {
+        if (!changeData.fileExists()) {
+            return deleteData(dropboxPath)
+                    .thenRun(() -> LOG.info("Deleted from Dropbox {}", () -> dropboxPath));
+
+        } else if (changeData.isDirectory()) {
+            if (LocalFolderChangeType.CREATE == changeData.getChangeType()) {
+                return createDirectory(dropboxPath)
+                        .thenRun(() -> LOG.info("Created in Dropbox {}", () -> dropboxPath));
             } else {
-                uploadFile(dropboxPath, changeData);
-                LOG.info("Uploaded to Dropbox {}", () -> dropboxPath);
+                LOG.info("Modify on local folder. Doing nothing for {}", () -> dropboxPath);
             }
-        } finally {
-            getGlobalOperationsTracker().stop(dropboxPath.toLowerCase(Locale.getDefault()));
+
+        } else if (uploadFile(dropboxPath, changeData)) {
+            LOG.info("Uploaded to Dropbox {}", () -> dropboxPath);
+        } else {
+            LOG.info("Content is the same as in Dropbox. Skipped upload of {}", () -> dropboxPath);
         }
+        return CompletableFuture.completedFuture(null);
     }
 
-    private void uploadFile(final String dropboxPath, final LocalFolderData changeData) {
+    /**
+     * Uploads the file, unless Dropbox already has the same content.
+     *
+     * @return true if the file was uploaded
+     */
+    private boolean uploadFile(final String dropboxPath, final LocalFolderData changeData) {
         final File file = changeData.getPath().toFile();
 
         final long lastModified = file.lastModified();
@@ -96,6 +141,11 @@ public class UploadService
 
         final DropboxFileData existingFileData = metadataDao.
                 readByLowerPath(dropboxPath.toLowerCase(Locale.getDefault()));
+        if (existingFileData != null && isSameContent(existingFileData, changeData)) {
+            metadataDao.writeLoadedFlag(existingFileData.getId(), true);
+            return false;
+        }
+
         final boolean override;
         if (existingFileData == null) {
             override = false;
@@ -108,34 +158,43 @@ public class UploadService
             LOG.debug("Existing file info is found and serverModified is later for {}", () -> dropboxPath);
         }
 
-        try (InputStream is = new BufferedInputStream(
-                new FileInputStream(file))) {
+        final DropboxFileData fileData = dropboxService.uploadFile(dropboxPath,
+                file, changeData.getSize(), lastModifiedDate, override);
 
-            final DropboxFileData fileData = dropboxService.uploadFile(dropboxPath,
-                    is, changeData.getSize(), lastModifiedDate, override);
-
-            metadataDao.write(fileData);
-            metadataDao.writeLoadedFlag(fileData.getId(), true);
+        metadataDao.write(fileData);
+        metadataDao.writeLoadedFlag(fileData.getId(), true);
+        return true;
+    }
 
-        } catch (final IOException ex) {
-            LOG.error("Error when reading file for upload", ex);
-            throw new DSyncClientException(ex);
+    /**
+     * Compares the local file with the file in Dropbox by content hash. Size
+     * is compared first, so files of different size are not hashed.
+     */
+    private boolean isSameContent(final DropboxFileData existingFileData, final LocalFolderData changeData) {
+        if (existingFileData.getContentHash() == null || !existingFileData.isFile()
+                || existingFileData.getSize() != changeData.getSize()) {
+            return false;
         }
+        return existingFileData.getContentHash().equals(contentHasher.hash(changeData.getPath()));
     }
 
-    private void createDirectory(final String dropboxPath) {
-        final DropboxFileData fileData = dropboxService.createFolder(dropboxPath);
-
-        metadataDao.write(fileData);
-        metadataDao.writeLoadedFlag(fileData.getId(), true);
+    private CompletableFuture<Void> createDirectory(final String dropboxPath) {
+        return dropboxService.createFolder(dropboxPath).thenAccept(fileData -> {
+            metadataDao.write(fileData);
+            metadataDao.writeLoadedFlag(fileData.getId(), true);
+        });
     }
 
-    private void deleteData(final String dropboxPath) {
-        dropboxService.deleteFile(dropboxPath);
-
-        metadataDao.deleteByLowerPath(dropboxPath.toLowerCase(Locale.getDefault()));
+    /**
+     * Deletes the path in Dropbox. Delete removes the whole subtree there, so
+     * metadata of the subtree is removed as well.
+     */
+    private CompletableFuture<Void> deleteData(final String dropboxPath) {
+        return dropboxService.deleteFile(dropboxPath)
+                .thenRun(() -> metadataDao.deleteTreeByLowerPath(dropboxPath.toLowerCase(Locale.getDefault())));
     }
 
+
     private String extractPath(final LocalFolderData changeData) {
         final String dropboxPath = localFolderService
                 .extractDropboxPath(changeData.getPath());
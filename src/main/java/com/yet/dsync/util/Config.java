@@ -24,10 +24,15 @@ public enum Config {
 
     LOCAL_DIR,
 
-    INITIAL_SYNC;
+    INITIAL_SYNC,
+
+    LAST_RUNNING;
 
     public static final String DB_NAME  = "dsync.db";
 
+    /* Folder inside the local folder where downloads are staged */
+    public static final String TEMP_DIR_NAME = ".dsync-tmp";
+
     public static String getProgramConfigurationDirectory() {
         return System.getProperty("user.home") + File.separator + ".dsyncclient";
     }
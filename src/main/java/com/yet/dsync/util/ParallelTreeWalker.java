@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2017 Yuriy Tkach
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+
+package com.yet.dsync.util;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Walks directory tree on the fork-join pool. Each directory is listed by a
+ * separate task, and tasks of its subdirectories are forked, so wide trees
+ * are listed by all pool threads at once. Symbolic links are not followed.
+ *
+ * <p>Visitor is called concurrently from the pool threads. Order of the
+ * calls is only guaranteed between the directory and its entries.
+ */
+public class ParallelTreeWalker {
+
+    private static final Logger LOG = LogManager.getLogger(ParallelTreeWalker.class);
+
+    private final ForkJoinPool pool;
+
+    public ParallelTreeWalker(final int parallelism) {
+        this.pool = new ForkJoinPool(parallelism, pool -> {
+            final ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("tree-walk-" + thread.getPoolIndex());
+            return thread;
+        }, null, false);
+    }
+
+    public int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    /**
+     * Walks the tree under the root directory and waits for the walk to
+     * finish. Entries that can't be read are skipped.
+     *
+     * @return number of visited directories and files, and time of the walk
+     */
+    public WalkStats walk(final Path root, final Visitor visitor) {
+        final long start = System.nanoTime();
+        final Walk walk = new Walk(visitor);
+        pool.invoke(new DirectoryTask(walk, root));
+
+        final WalkStats stats = new WalkStats(walk.directories.sum(), walk.files.sum(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        LOG.trace("Walked {}: {}", root, stats);
+        return stats;
+    }
+
+    /**
+     * Receives entries of the walked tree
+     */
+    public interface Visitor {
+
+        /**
+         * Called for each directory before its entries
+         *
+         * @return false to skip the directory and everything under it
+         */
+        boolean preVisitDirectory(Path dir);
+
+        default void visitFile(final Path file, final BasicFileAttributes attrs) {
+            // files are not needed by default
+        }
+
+        /**
+         * Called with all entries of the directory after they were visited,
+         * before its subdirectories are walked
+         */
+        default void postVisitDirectory(final Path dir, final Map<Path, BasicFileAttributes> entries) {
+            // entries are not needed by default
+        }
+    }
+
+    public static class WalkStats {
+        private final long directories;
+        private final long files;
+        private final long elapsedMillis;
+
+        WalkStats(final long directories, final long files, final long elapsedMillis) {
+            this.directories = directories;
+            this.files = files;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        public long getDirectories() {
+            return directories;
+        }
+
+        public long getFiles() {
+            return files;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        @Override
+        public String toString() {
+            return directories + " directories, " + files + " files in " + elapsedMillis + " ms";
+        }
+    }
+
+    private static class Walk {
+        private final Visitor visitor;
+        private final LongAdder directories = new LongAdder();
+        private final LongAdder files = new LongAdder();
+
+        Walk(final Visitor visitor) {
+            this.visitor = visitor;
+        }
+    }
+
+    private static class DirectoryTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final transient Walk walk;
+        private final transient Path dir;
+
+        DirectoryTask(final Walk walk, final Path dir) {
+            this.walk = walk;
+            this.dir = dir;
+        }
+
+        @Override
+        protected void compute() {
+            if (!walk.visitor.preVisitDirectory(dir)) {
+                return;
+            }
+            walk.directories.increment();
+
+            final List<DirectoryTask> subdirTasks = new ArrayList<>();
+            final Map<Path, BasicFileAttributes> entries = new HashMap<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                for (final Path entry : stream) {
+                    final BasicFileAttributes attrs;
+                    try {
+                        attrs = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    } catch (final IOException ex) {
+                        LOG.debug("Skipped {}: {}", entry, ex.getMessage());
+                        continue;
+                    }
+
+                    entries.put(entry, attrs);
+                    if (attrs.isDirectory()) {
+                        subdirTasks.add(new DirectoryTask(walk, entry));
+                    } else {
+                        walk.files.increment();
+                        walk.visitor.visitFile(entry, attrs);
+                    }
+                }
+            } catch (final IOException ex) {
+                LOG.debug("Failed to list {}: {}", dir, ex.getMessage());
+                return;
+            }
+
+            walk.visitor.postVisitDirectory(dir, entries);
+            invokeAll(subdirTasks);
+        }
+    }
+
+}
@@ -40,4 +40,13 @@ public final class PathUtil {
         return extractDropboxPath(localDirAbsolutePath, fullPathAbsolutePath);
     }
 
+    /**
+     * Checks if the dropbox path points to the temporary folder of the client
+     * or anything inside it.
+     */
+    public static boolean isTempPath(final String dropboxPath) {
+        final String tempDirPath = "/" + Config.TEMP_DIR_NAME;
+        return dropboxPath.equals(tempDirPath) || dropboxPath.startsWith(tempDirPath + "/");
+    }
+
 }
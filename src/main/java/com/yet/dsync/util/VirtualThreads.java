@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2017 Yuriy Tkach
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+
+package com.yet.dsync.util;
+
+import com.yet.dsync.exception.DSyncClientException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates virtual threads when the client runs on JDK 21 or later. The code
+ * is compiled for Java 8, so the thread builder API is called by reflection.
+ */
+public final class VirtualThreads {
+
+    private static final Logger LOG = LogManager.getLogger(VirtualThreads.class);
+
+    private static final Method OF_VIRTUAL = findMethod(Thread.class.getName(), "ofVirtual");
+    private static final Method NAME = findMethod("java.lang.Thread$Builder", "name", String.class, long.class);
+    private static final Method FACTORY = findMethod("java.lang.Thread$Builder", "factory");
+
+    private VirtualThreads() { }
+
+    public static boolean isSupported() {
+        return OF_VIRTUAL != null && NAME != null && FACTORY != null;
+    }
+
+    /**
+     * Creates factory of virtual threads named with the prefix and a number
+     */
+    public static ThreadFactory newFactory(final String namePrefix) {
+        if (!isSupported()) {
+            throw new DSyncClientException("Virtual threads require Java 21 or later");
+        }
+        try {
+            final Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), namePrefix, 0L);
+            return (ThreadFactory) FACTORY.invoke(builder);
+        } catch (final IllegalAccessException | InvocationTargetException ex) {
+            throw new DSyncClientException(ex);
+        }
+    }
+
+    private static Method findMethod(final String className, final String name, final Class<?>... parameterTypes) {
+        try {
+            return Class.forName(className).getMethod(name, parameterTypes);
+        } catch (final ReflectiveOperationException ex) {
+            LOG.trace("Virtual threads are not available: {}", ex.getMessage());
+            return null;
+        }
+    }
+
+}
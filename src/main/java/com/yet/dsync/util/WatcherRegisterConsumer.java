@@ -19,14 +19,10 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.IOException;
-import java.nio.file.FileVisitResult;
-import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardWatchEventKinds;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
-import java.nio.file.attribute.BasicFileAttributes;
 import java.util.function.Consumer;
 
 //import com.sun.nio.file.SensitivityWatchEventModifier;
@@ -37,54 +33,64 @@ public class WatcherRegisterConsumer implements Consumer<Path> {
 
     private final WatchService watchService;
     private final Consumer<WatchKey> watchKeyConsumer;
+    private final ParallelTreeWalker treeWalker;
 
-    public WatcherRegisterConsumer(final WatchService watchService, final Consumer<WatchKey> watchKeyConsumer) {
+    public WatcherRegisterConsumer(final WatchService watchService, final Consumer<WatchKey> watchKeyConsumer,
+                                   final ParallelTreeWalker treeWalker) {
         this.watchService = watchService;
         this.watchKeyConsumer = watchKeyConsumer;
+        this.treeWalker = treeWalker;
     }
 
     @Override
     public void accept(final Path path) {
+        register(path);
+    }
+
+    /**
+     * Registers the directory and all directories under it
+     *
+     * @return statistics of the walk
+     */
+    public ParallelTreeWalker.WalkStats register(final Path path) {
         if (!path.toFile().exists() || !path.toFile().isDirectory()) {
             throw new DSyncClientException("folder " + path + " does not exist or is not a directory");
         }
-        try {
-            //FIXME: fix recursive subscription in case of windows os
-            registerWatchersRecursively(path);
+        //FIXME: fix recursive subscription in case of windows os
+        return registerWatchersRecursively(path);
 //            if (SystemUtils.IS_OS_UNIX) {
 //                registerWatchersRecursively(path);
 //            } else if (SystemUtils.IS_OS_WINDOWS) {
 //                registerWatcherForFileTree(path);
 //            }
-        } catch (final IOException ex) {
-            throw new DSyncClientException("Error registering path " + path, ex);
-        }
-
     }
 
     /**
      * Register watchers recursively. Applicable for unix type operation systems.
+     * Directories are registered in parallel by the tree walker, watch service
+     * and the key consumer accept concurrent registrations.
      *
      * @param path to directory
-     * @throws IOException during watchers registration
+     * @return statistics of the walk
      */
-    private void registerWatchersRecursively(final Path path) throws IOException {
-        Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
-            @Override
-            public FileVisitResult preVisitDirectory(final Path dir,
-                                                     final BasicFileAttributes attrs) throws IOException {
-                LOG.trace("Registering in watcher server: {}", () -> dir);
-                final WatchKey watchKey = dir
+    private ParallelTreeWalker.WalkStats registerWatchersRecursively(final Path path) {
+        return treeWalker.walk(path, dir -> {
+            LOG.trace("Registering in watcher server: {}", () -> dir);
+            final WatchKey watchKey;
+            try {
+                watchKey = dir
                         .register(watchService,
                                 StandardWatchEventKinds.ENTRY_CREATE,
                                 StandardWatchEventKinds.ENTRY_DELETE,
                                 StandardWatchEventKinds.ENTRY_MODIFY);
 //                 , SensitivityWatchEventModifier.HIGH);
-                if (watchKeyConsumer != null) {
-                    watchKeyConsumer.accept(watchKey);
-                }
-                return FileVisitResult.CONTINUE;
+            } catch (final IOException ex) {
+                throw new DSyncClientException("Error registering path " + dir, ex);
+            }
+            if (watchKeyConsumer != null) {
+                watchKeyConsumer.accept(watchKey);
             }
+            return true;
         });
     }
 
@@ -0,0 +1,272 @@
+/*
+ * Copyright (c) 2017 Yuriy Tkach
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+
+package com.yet.dsync.watcher;
+
+import com.sun.jna.Library;
+import com.sun.jna.Memory;
+import com.sun.jna.Native;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Platform;
+import com.sun.jna.Pointer;
+import com.yet.dsync.exception.DSyncClientException;
+import com.yet.dsync.util.ParallelTreeWalker;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent.Kind;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Linux backend that calls inotify directly through JNA. The JDK watch
+ * service registers each directory through its background thread and keeps
+ * a watch key object for it, which makes registration of large trees slow.
+ * Here watches are added right on the registering thread, only the watch
+ * descriptor to directory mapping is kept, and events are read in an epoll
+ * loop by the polling thread.
+ *
+ * <p>Kernel queue overflow loses events of all directories, so all watched
+ * directories are reported as overflowed.
+ */
+public class InotifyWatcherBackend implements WatcherBackend {
+
+    private static final Logger LOG = LogManager.getLogger(InotifyWatcherBackend.class);
+
+    private static final int IN_MODIFY = 0x00000002;
+    private static final int IN_ATTRIB = 0x00000004;
+    private static final int IN_MOVED_FROM = 0x00000040;
+    private static final int IN_MOVED_TO = 0x00000080;
+    private static final int IN_CREATE = 0x00000100;
+    private static final int IN_DELETE = 0x00000200;
+    private static final int IN_Q_OVERFLOW = 0x00004000;
+    private static final int IN_IGNORED = 0x00008000;
+    private static final int IN_ONLYDIR = 0x01000000;
+
+    private static final int IN_NONBLOCK = 0x00000800;
+    private static final int IN_CLOEXEC = 0x00080000;
+
+    private static final int WATCH_MASK = IN_CREATE | IN_DELETE | IN_MODIFY | IN_ATTRIB
+            | IN_MOVED_FROM | IN_MOVED_TO | IN_ONLYDIR;
+
+    private static final int EPOLL_CLOEXEC = 0x00080000;
+    private static final int EPOLLIN = 0x001;
+    private static final int EPOLL_CTL_ADD = 1;
+
+    /* Large enough for epoll_event on every architecture */
+    private static final int EPOLL_EVENT_SIZE = 16;
+
+    /* Timeout of the wait, so interruption of the polling thread is noticed */
+    private static final int EPOLL_TIMEOUT_MILLIS = 1000;
+
+    private static final int EINTR = 4;
+    private static final int EAGAIN = 11;
+    private static final int ENOENT = 2;
+    private static final int ENOTDIR = 20;
+    private static final int ENOSPC = 28;
+
+    /* Fixed part of inotify_event: wd, mask, cookie, len */
+    private static final int EVENT_HEADER_SIZE = 16;
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final LibC libC;
+
+    private final ParallelTreeWalker treeWalker;
+
+    private final int inotifyFd;
+    private final int epollFd;
+
+    private final Map<Integer, Path> watches = new ConcurrentHashMap<>();
+
+    private final Memory readBuffer = new Memory(READ_BUFFER_SIZE);
+    private final Memory epollEvents = new Memory(EPOLL_EVENT_SIZE);
+
+    public InotifyWatcherBackend(final ParallelTreeWalker treeWalker) {
+        libC = LibCHolder.INSTANCE;
+        this.treeWalker = treeWalker;
+
+        inotifyFd = libC.inotify_init1(IN_NONBLOCK | IN_CLOEXEC);
+        if (inotifyFd < 0) {
+            throw new DSyncClientException("inotify_init1 failed, errno " + Native.getLastError());
+        }
+
+        epollFd = libC.epoll_create1(EPOLL_CLOEXEC);
+        if (epollFd < 0) {
+            final int errno = Native.getLastError();
+            libC.close(inotifyFd);
+            throw new DSyncClientException("epoll_create1 failed, errno " + errno);
+        }
+
+        final Memory event = new Memory(EPOLL_EVENT_SIZE);
+        event.clear();
+        event.setInt(0, EPOLLIN);
+        if (libC.epoll_ctl(epollFd, EPOLL_CTL_ADD, inotifyFd, event) < 0) {
+            final int errno = Native.getLastError();
+            libC.close(epollFd);
+            libC.close(inotifyFd);
+            throw new DSyncClientException("epoll_ctl failed, errno " + errno);
+        }
+    }
+
+    /**
+     * Checks if the backend can be used on this system
+     */
+    public static boolean isSupported() {
+        if (!Platform.isLinux()) {
+            return false;
+        }
+        try {
+            return LibCHolder.INSTANCE != null;
+        } catch (final LinkageError ex) {
+            LOG.debug("Native inotify is not available", ex);
+            return false;
+        }
+    }
+
+    @Override
+    public ParallelTreeWalker.WalkStats registerTree(final Path dir) {
+        return treeWalker.walk(dir, this::addWatch);
+    }
+
+    /**
+     * Adds watch for the directory. Called concurrently by the tree walker,
+     * last error of the native call is kept per thread.
+     */
+    private boolean addWatch(final Path dir) {
+        LOG.trace("Adding inotify watch: {}", () -> dir);
+        final int wd = libC.inotify_add_watch(inotifyFd, dir.toString(), WATCH_MASK);
+        if (wd < 0) {
+            final int errno = Native.getLastError();
+            if (errno == ENOENT || errno == ENOTDIR) {
+                return false;
+            } else if (errno == ENOSPC) {
+                throw new DSyncClientException("Limit of inotify watches is reached at " + dir
+                        + ". Increase fs.inotify.max_user_watches");
+            }
+            throw new DSyncClientException("inotify_add_watch failed for " + dir + ", errno " + errno);
+        }
+        watches.put(wd, dir);
+        return true;
+    }
+
+    @Override
+    public void poll(final WatchEventListener listener) throws IOException, InterruptedException {
+        final int ready = libC.epoll_wait(epollFd, epollEvents, 1, EPOLL_TIMEOUT_MILLIS);
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        if (ready < 0) {
+            final int errno = Native.getLastError();
+            if (errno == EINTR) {
+                return;
+            }
+            throw new IOException("epoll_wait failed, errno " + errno);
+        }
+        if (ready > 0) {
+            readEvents(listener);
+        }
+    }
+
+    private void readEvents(final WatchEventListener listener) throws IOException {
+        while (true) {
+            final long read = libC.read(inotifyFd, readBuffer, new NativeLong(READ_BUFFER_SIZE)).longValue();
+            if (read < 0) {
+                final int errno = Native.getLastError();
+                if (errno == EAGAIN) {
+                    return;
+                } else if (errno != EINTR) {
+                    throw new IOException("Failed to read inotify events, errno " + errno);
+                }
+            } else if (read == 0) {
+                return;
+            } else {
+                dispatchEvents(read, listener);
+            }
+        }
+    }
+
+    private void dispatchEvents(final long read, final WatchEventListener listener) {
+        long offset = 0;
+        while (offset < read) {
+            final int wd = readBuffer.getInt(offset);
+            final int mask = readBuffer.getInt(offset + 4);
+            final int nameLength = readBuffer.getInt(offset + 12);
+            final String name = nameLength > 0 ? readBuffer.getString(offset + EVENT_HEADER_SIZE, "UTF-8") : null;
+            offset += EVENT_HEADER_SIZE + nameLength;
+
+            if ((mask & IN_Q_OVERFLOW) != 0) {
+                LOG.warn("Inotify queue overflowed. Rescanning {} directories", watches.size());
+                watches.values().forEach(listener::onOverflow);
+            } else if ((mask & IN_IGNORED) != 0) {
+                watches.remove(wd);
+            } else {
+                final Path dir = watches.get(wd);
+                final Kind<Path> kind = toKind(mask);
+                if (dir != null && name != null && kind != null) {
+                    listener.onEvent(kind, dir.resolve(name));
+                }
+            }
+        }
+    }
+
+    private static Kind<Path> toKind(final int mask) {
+        if ((mask & (IN_CREATE | IN_MOVED_TO)) != 0) {
+            return StandardWatchEventKinds.ENTRY_CREATE;
+        } else if ((mask & (IN_DELETE | IN_MOVED_FROM)) != 0) {
+            return StandardWatchEventKinds.ENTRY_DELETE;
+        } else if ((mask & (IN_MODIFY | IN_ATTRIB)) != 0) {
+            return StandardWatchEventKinds.ENTRY_MODIFY;
+        } else {
+            return null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        LOG.debug("Closing inotify");
+        libC.close(epollFd);
+        libC.close(inotifyFd);
+    }
+
+    /**
+     * Functions of the C library used by the backend
+     */
+    @SuppressWarnings("checkstyle:methodname")
+    interface LibC extends Library {
+        int inotify_init1(int flags);
+
+        int inotify_add_watch(int fd, String pathname, int mask);
+
+        int epoll_create1(int flags);
+
+        int epoll_ctl(int epfd, int op, int fd, Pointer event);
+
+        int epoll_wait(int epfd, Pointer events, int maxevents, int timeout);
+
+        NativeLong read(int fd, Pointer buf, NativeLong count);
+
+        int close(int fd);
+    }
+
+    /* Library is loaded on first use, so failure to load it is reported by isSupported */
+    private static final class LibCHolder {
+        private static final LibC INSTANCE = Native.load("c", LibC.class);
+    }
+
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2017 Yuriy Tkach
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+
+package com.yet.dsync.watcher;
+
+import com.yet.dsync.exception.DSyncClientException;
+import com.yet.dsync.util.ParallelTreeWalker;
+import com.yet.dsync.util.WatcherRegisterConsumer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Backend on the JDK {@link WatchService} with a watch key per directory.
+ * Works on every platform.
+ */
+public class JdkWatcherBackend implements WatcherBackend {
+
+    private static final Logger LOG = LogManager.getLogger(JdkWatcherBackend.class);
+
+    private final WatchService watchService;
+
+    private final Map<WatchKey, Path> keys = new ConcurrentHashMap<>();
+
+    private final WatcherRegisterConsumer watcherConsumer;
+
+    public JdkWatcherBackend(final ParallelTreeWalker treeWalker) {
+        try {
+            this.watchService = FileSystems.getDefault().newWatchService();
+        } catch (final IOException ex) {
+            throw new DSyncClientException(ex);
+        }
+
+        watcherConsumer = new WatcherRegisterConsumer(watchService, key -> {
+            final Path path = (Path) key.watchable();
+            keys.put(key, path);
+        }, treeWalker);
+    }
+
+    @Override
+    public ParallelTreeWalker.WalkStats registerTree(final Path dir) {
+        return watcherConsumer.register(dir);
+    }
+
+    @Override
+    public void poll(final WatchEventListener listener) throws InterruptedException {
+        final WatchKey key = watchService.take();
+
+        final Path dir = keys.get(key);
+        if (dir == null) {
+            LOG.error("WatchKey {} not recognized!", () -> key);
+            return;
+        }
+
+        for (final WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                listener.onOverflow(dir);
+            } else {
+                @SuppressWarnings("unchecked")
+                final WatchEvent<Path> pathEvent = (WatchEvent<Path>) event;
+                listener.onEvent(pathEvent.kind(), dir.resolve(pathEvent.context()));
+            }
+        }
+
+        final boolean valid = key.reset(); // IMPORTANT: The key must be reset
+                                           // after processed
+        if (!valid) {
+            LOG.warn("Key reset was not valid. Discard key and continue");
+            keys.remove(key);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        LOG.debug("Closing watchService");
+        watchService.close();
+    }
+
+}
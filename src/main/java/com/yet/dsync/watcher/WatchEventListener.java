@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) 2017 Yuriy Tkach
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+
+package com.yet.dsync.watcher;
+
+import java.nio.file.Path;
+import java.nio.file.WatchEvent.Kind;
+
+/**
+ * Receives events read by the {@link WatcherBackend}
+ */
+public interface WatchEventListener {
+
+    /**
+     * Called for create, modify or delete event of the path
+     */
+    void onEvent(Kind<Path> kind, Path path);
+
+    /**
+     * Called when events in the directory were lost
+     */
+    void onOverflow(Path dir);
+
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2017 Yuriy Tkach
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+
+package com.yet.dsync.watcher;
+
+import com.yet.dsync.util.ParallelTreeWalker;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Source of file system events for the local folder watching. Directories
+ * are registered recursively, and events are read by a single thread.
+ */
+public interface WatcherBackend extends Closeable {
+
+    /**
+     * Starts watching the directory and all directories under it
+     *
+     * @return statistics of the directory walk
+     */
+    ParallelTreeWalker.WalkStats registerTree(Path dir);
+
+    /**
+     * Waits for events and passes them to the listener
+     *
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    void poll(WatchEventListener listener) throws IOException, InterruptedException;
+
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2017 Yuriy Tkach
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+
+package com.yet.dsync.watcher;
+
+import com.yet.dsync.exception.DSyncClientException;
+import com.yet.dsync.util.ParallelTreeWalker;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Locale;
+
+public enum WatcherBackendType {
+
+    /**
+     * Native inotify where it is available, JDK watch service otherwise.
+     */
+    AUTO,
+
+    /**
+     * JDK watch service.
+     */
+    JDK,
+
+    /**
+     * Native inotify, only on Linux.
+     */
+    INOTIFY;
+
+    private static final Logger LOG = LogManager.getLogger(WatcherBackendType.class);
+
+    public WatcherBackend create(final ParallelTreeWalker treeWalker) {
+        if (this == INOTIFY || this == AUTO && InotifyWatcherBackend.isSupported()) {
+            LOG.debug("Using native inotify watcher backend");
+            return new InotifyWatcherBackend(treeWalker);
+        } else {
+            LOG.debug("Using JDK watcher backend");
+            return new JdkWatcherBackend(treeWalker);
+        }
+    }
+
+    public static WatcherBackendType fromOption(final String option) {
+        try {
+            return valueOf(option.trim().toUpperCase(Locale.ENGLISH));
+        } catch (final IllegalArgumentException ex) {
+            throw new DSyncClientException("Unknown watcher backend " + option, ex);
+        }
+    }
+
+}